@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.data;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.DBObject;
+
+/**
+ * Cost of mapping a Web Script invocation to and from its MongoDB document, which happens at least once per
+ * invocation on both the scheduling and the invoking side.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DocumentMappingBenchmark {
+    private WebScriptInvocationData data;
+    private DBObject document;
+
+    @Setup
+    public void setUp() {
+        data = new WebScriptInvocationData();
+        data.setRun(1);
+        data.setSeq(1);
+        data.setMessage("Message 0000001");
+        data.setUsername("user00001");
+        data.setState(DataCreationState.Scheduled);
+        data.setScheduled(System.currentTimeMillis());
+        document = WebScriptInvocationDataDAO.toDBObject(data);
+    }
+
+    @Benchmark
+    public DBObject toDBObject() {
+        return WebScriptInvocationDataDAO.toDBObject(data);
+    }
+
+    @Benchmark
+    public WebScriptInvocationData fromDBObject() {
+        return WebScriptInvocationDataDAO.fromDBObject(document);
+    }
+}
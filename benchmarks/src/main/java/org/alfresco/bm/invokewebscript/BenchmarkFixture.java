@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.alfresco.bm.data.CachedUserDataService;
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.data.WebScriptInvocationData;
+import org.alfresco.bm.data.WebScriptInvocationDataDAO;
+import org.alfresco.bm.user.UserData;
+
+import com.github.fakemongo.Fongo;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * What the benchmarks run against: an in-process MongoDB stand-in with users in it, and a local stub HTTP server
+ * answering every call with a small 200 response, so only the driver's own cost is measured.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class BenchmarkFixture {
+    public static final String TEST_RUN_FQN = "benchmark.run1";
+    public static final String USERS_COLLECTION = "mirrors.benchmark.users";
+    public static final String INVOCATIONS_COLLECTION = "benchmark.webscriptinvocations";
+    public static final String PASSWORD = "password";
+
+    private static final byte[] STUB_RESPONSE = "<html><body>Message: Hello World</body></html>".getBytes();
+
+    private final DB db;
+    private final CachedUserDataService userDataService;
+    private final WebScriptInvocationDataDAO webScriptInvocationDataDAO;
+    private HttpServer stubServer;
+    private ExecutorService stubExecutor;
+
+    /**
+     * @param userCount the number of created users to put in the user mirror
+     */
+    public BenchmarkFixture(int userCount) {
+        this.db = new Fongo("benchmark").getDB("bm");
+        this.userDataService = new CachedUserDataService(db, USERS_COLLECTION);
+        for (int i = 0; i < userCount; i++) {
+            UserData user = new UserData();
+            user.setUsername(String.format("user%05d", i));
+            user.setPassword(PASSWORD);
+            user.setFirstName("User");
+            user.setLastName(Integer.toString(i));
+            user.setEmail(user.getUsername() + "@example.com");
+            user.setCreationState(DataCreationState.Created);
+            userDataService.createNewUser(user);
+        }
+        this.webScriptInvocationDataDAO = new WebScriptInvocationDataDAO(db, INVOCATIONS_COLLECTION);
+    }
+
+    public CachedUserDataService getUserDataService() {
+        return userDataService;
+    }
+
+    public WebScriptInvocationDataDAO getWebScriptInvocationDataDAO() {
+        return webScriptInvocationDataDAO;
+    }
+
+    /**
+     * Drop the Web Script invocations, so the collection does not grow across iterations
+     */
+    public void clearWebScriptInvocations() {
+        db.getCollection(INVOCATIONS_COLLECTION).remove(new BasicDBObject());
+    }
+
+    /**
+     * @return a scheduled Web Script invocation as the scheduler creates it
+     */
+    public WebScriptInvocationData newWebScriptInvocation(int count) {
+        WebScriptInvocationData data = new WebScriptInvocationData();
+        data.setRun(webScriptInvocationDataDAO.getRunId(TEST_RUN_FQN));
+        data.setSeq(count);
+        data.setMessage(String.format("Message %07d", count));
+        data.setUsername(userDataService.getRandomUser().getUsername());
+        data.setState(DataCreationState.Scheduled);
+        data.setScheduled(System.currentTimeMillis());
+        return data;
+    }
+
+    /**
+     * Start the stub HTTP server
+     *
+     * @return the base URL of the server
+     */
+    public String startStubServer(int threads) throws IOException {
+        stubServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        stubServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getRequestBody().close();
+                exchange.sendResponseHeaders(200, STUB_RESPONSE.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(STUB_RESPONSE);
+                os.close();
+            }
+        });
+        stubExecutor = Executors.newFixedThreadPool(threads);
+        stubServer.setExecutor(stubExecutor);
+        stubServer.start();
+        return "http://127.0.0.1:" + stubServer.getAddress().getPort();
+    }
+
+    public void stopStubServer() {
+        if (stubServer != null) {
+            stubServer.stop(0);
+            stubExecutor.shutdownNow();
+            stubServer = null;
+        }
+    }
+}
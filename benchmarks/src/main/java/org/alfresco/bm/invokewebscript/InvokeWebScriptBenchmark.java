@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.bm.data.WebScriptInvocationDataDAO;
+import org.alfresco.bm.data.WebScriptInvocationStateUpdater;
+import org.alfresco.bm.event.Event;
+import org.alfresco.bm.event.EventResult;
+import org.alfresco.bm.http.UserDataAutheticationDetailsProvider;
+import org.alfresco.http.SharedHttpClientProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a whole {@link InvokeWebScriptEventProcessor#processEvent(Event)} against a local stub HTTP server that
+ * answers straight away, with self-contained events and write-behind state updates. Subtracting the stub's own
+ * round trip leaves the driver's CPU and allocation cost per invocation; run with <tt>-prof gc</tt> for the
+ * allocation rate.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class InvokeWebScriptBenchmark {
+    private BenchmarkFixture fixture;
+    private WebScriptInvocationStateUpdater stateUpdater;
+    private InvokeWebScriptEventProcessor processor;
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = new BenchmarkFixture(1000);
+        String baseUrl = fixture.startStubServer(8);
+
+        stateUpdater = new WebScriptInvocationStateUpdater(fixture.getWebScriptInvocationDataDAO());
+        stateUpdater.setEnabled(true);
+        stateUpdater.start();
+
+        processor = new InvokeWebScriptEventProcessor(
+                new SharedHttpClientProvider(50, 10000, 10000, 60000),
+                new UserDataAutheticationDetailsProvider(fixture.getUserDataService(), "admin", "admin"),
+                baseUrl,
+                fixture.getWebScriptInvocationDataDAO(),
+                fixture.getUserDataService());
+        processor.setStateUpdater(stateUpdater);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        stateUpdater.stop();
+        fixture.stopStubServer();
+    }
+
+    @Benchmark
+    public EventResult invokeWebScript() throws Exception {
+        return processor.processEvent(new Event("invokeWebScript", 0L,
+                WebScriptInvocationDataDAO.toDBObject(fixture.newWebScriptInvocation(count.incrementAndGet()))));
+    }
+}
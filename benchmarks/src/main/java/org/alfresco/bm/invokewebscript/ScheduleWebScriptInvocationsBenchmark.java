@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.bm.event.Event;
+import org.alfresco.bm.event.EventResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost per scheduled invocation of {@link ScheduleWebScriptInvocationsEventProcessor#processEvent(Event)}: name
+ * generation, message formatting, picking a user, storing the invocation and building its event. Each batch is
+ * one benchmark operation, reported per invocation. Compares single inserts with bulk inserts, and name lookups
+ * with self-contained events. Each batch carries on from the progress of the previous one, as the rescheduled
+ * event does in a test run, so every batch stores new invocations of the run.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScheduleWebScriptInvocationsBenchmark {
+    private static final int BATCH_SIZE = 100;
+    private static final String EVENT_NAME = "scheduleWebScriptInvocations";
+
+    @Param({"false", "true"})
+    private boolean bulkInsert;
+
+    @Param({"false", "true"})
+    private boolean directInvocation;
+
+    private BenchmarkFixture fixture;
+    private ScheduleWebScriptInvocationsEventProcessor processor;
+    private Object progress;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = new BenchmarkFixture(1000);
+        processor = new ScheduleWebScriptInvocationsEventProcessor(
+                fixture.getUserDataService(), fixture.getWebScriptInvocationDataDAO(),
+                BenchmarkFixture.TEST_RUN_FQN, Integer.MAX_VALUE, 10L, "Message %07d");
+        processor.setBatchSize(BATCH_SIZE);
+        processor.setBulkInsert(bulkInsert);
+        processor.setDirectInvocation(directInvocation);
+    }
+
+    @Setup(Level.Iteration)
+    public void clear() {
+        fixture.clearWebScriptInvocations();
+        progress = null;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public EventResult scheduleBatch() throws Exception {
+        EventResult result = processor.processEvent(new Event(EVENT_NAME, 0L, progress));
+        // The rescheduled event, which carries the progress, comes last
+        List<Event> nextEvents = result.getNextEvents();
+        Event next = nextEvents.get(nextEvents.size() - 1);
+        progress = EVENT_NAME.equals(next.getName()) ? next.getData() : null;
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.data.WebScriptInvocationData;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building the URL and request of a Web Script call from its invocation, with the precompiled
+ * {@link WebScriptTemplate templates} of a {@link WebScriptOperation} and with plain string concatenation and
+ * {@link URLEncoder} as a baseline.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WebScriptRequestBenchmark {
+    private static final String BASE_URL = "http://localhost:8080";
+
+    private WebScriptOperation operation;
+    private WebScriptInvocationData data;
+
+    @Setup
+    public void setUp() {
+        operation = WebScriptWorkload.helloWorld().getOperation(null);
+        data = new WebScriptInvocationData();
+        data.setRun(1);
+        data.setSeq(1);
+        data.setMessage("Message 0000001");
+        data.setUsername("user00001");
+        data.setState(DataCreationState.Scheduled);
+    }
+
+    @Benchmark
+    public String concatenateUrl() throws Exception {
+        return BASE_URL + "/alfresco/service/sample/helloworld?message=" + URLEncoder.encode(data.getMessage(), "UTF-8");
+    }
+
+    @Benchmark
+    public String renderUrl() throws Exception {
+        return BASE_URL + operation.getPath(data);
+    }
+
+    @Benchmark
+    public HttpRequestBase concatenateRequest() throws Exception {
+        return new HttpGet(concatenateUrl());
+    }
+
+    @Benchmark
+    public HttpRequestBase renderRequest() throws Exception {
+        return operation.createRequest(renderUrl(), data);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.bm.user.UserData;
+import org.alfresco.bm.user.UserDataServiceImpl;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * User data service that keeps a pool of the created users in memory, so that picking a random user and looking
+ * up a user by username does not cost a MongoDB query per Web Script invocation.
+ * <p/>
+ * The pool is loaded by a background thread as soon as the service starts and reloaded every refresh interval,
+ * swapping in the new pool when it is loaded, so no caller ever waits for a load: until the first pool is in, the
+ * users come straight from MongoDB. The users are read a page at a time in <tt>_id</tt> order, each page starting
+ * after the last <tt>_id</tt> of the previous one, so loading costs the same per user however large the mirror is.
+ * If a maximum size is set, a random sample of that many users is kept and lookups of users outside the sample go
+ * to MongoDB. Everything else is handled by {@link UserDataServiceImpl}.
+ * <p/>
+ * This extends {@link UserDataServiceImpl} rather than wrapping a <tt>UserDataService</tt>, as the users mirror is
+ * the same collection either way and only two lookups are served from memory; a wrapper would have to forward
+ * every other method of the interface, which grows between versions of the benchmark server.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class CachedUserDataService extends UserDataServiceImpl {
+    private static Log logger = LogFactory.getLog(CachedUserDataService.class);
+
+    public static final long DEFAULT_REFRESH_INTERVAL_MS = 300000L;
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private static final String FIELD_ID = "_id";
+
+    /**
+     * The users mirror, read directly to page through it by <tt>_id</tt>
+     */
+    private final DBCollection users;
+
+    /**
+     * Serve users from memory, if not every call goes to MongoDB
+     */
+    private boolean enabled;
+
+    /**
+     * How old (millisec) the pool can get before it is reloaded
+     */
+    private long refreshIntervalMs;
+
+    /**
+     * The maximum number of users to keep in memory, 0 for all of them
+     */
+    private int maxSize;
+
+    /**
+     * The current pool of users, replaced as a whole on reload
+     */
+    private volatile UserPool pool;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param db         MongoDB
+     * @param collection name of DB collection containing user data
+     */
+    public CachedUserDataService(DB db, String collection) {
+        super(db, collection);
+        this.users = db.getCollection(collection);
+        this.enabled = false;
+        this.refreshIntervalMs = DEFAULT_REFRESH_INTERVAL_MS;
+        this.maxSize = 0;
+    }
+
+    /**
+     * Switch the in-memory pool on or off (default: <tt>false</tt>)
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_REFRESH_INTERVAL_MS default} age at which the pool is reloaded
+     */
+    public void setRefreshIntervalMs(long refreshIntervalMs) {
+        this.refreshIntervalMs = refreshIntervalMs;
+    }
+
+    /**
+     * Limit the number of users kept in memory (default: 0, no limit)
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public synchronized void start() {
+        if (!enabled) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CachedUserDataService");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pool = loadPool();
+                } catch (Throwable e) {
+                    logger.error("Failed to load the user pool, keeping the previous one.", e);
+                }
+            }
+        }, 0L, refreshIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public UserData getRandomUser() {
+        UserPool current = pool;
+        if (!enabled || current == null || current.users.length == 0) {
+            return super.getRandomUser();
+        }
+        return current.users[ThreadLocalRandom.current().nextInt(current.users.length)];
+    }
+
+    @Override
+    public UserData findUserByUsername(String username) {
+        UserPool current = pool;
+        UserData user = !enabled || current == null ? null : current.usersByUsername.get(username);
+        if (user == null) {
+            // Not in the pool, maybe because of the size limit or because it was created after the last load
+            user = super.findUserByUsername(username);
+        }
+        return user;
+    }
+
+    /**
+     * Page through all the created users by <tt>_id</tt>, keeping a random sample if the pool size is limited
+     */
+    private UserPool loadPool() {
+        long start = System.currentTimeMillis();
+        List<UserData> loaded = new ArrayList<UserData>();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int seen = 0;
+        Object lastId = null;
+        while (true) {
+            DBObject queryObj = new BasicDBObject(FIELD_CREATION_STATE, DataCreationState.Created.toString());
+            if (lastId != null) {
+                queryObj.put(FIELD_ID, new BasicDBObject("$gt", lastId));
+            }
+            DBCursor cursor = users
+                    .find(queryObj)
+                    .sort(new BasicDBObject(FIELD_ID, 1))
+                    .limit(DEFAULT_PAGE_SIZE)
+                    .batchSize(DEFAULT_PAGE_SIZE);
+            int pageSize = 0;
+            try {
+                while (cursor.hasNext()) {
+                    DBObject userObj = cursor.next();
+                    lastId = userObj.get(FIELD_ID);
+                    pageSize++;
+                    UserData user = toUserData(userObj);
+                    if (maxSize <= 0 || loaded.size() < maxSize) {
+                        loaded.add(user);
+                    } else {
+                        // Reservoir sampling, each user seen so far has the same chance of being in the pool
+                        int slot = random.nextInt(seen + 1);
+                        if (slot < maxSize) {
+                            loaded.set(slot, user);
+                        }
+                    }
+                    seen++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (pageSize < DEFAULT_PAGE_SIZE) {
+                break;
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Loaded " + loaded.size() + " of " + seen + " users into the user pool in " +
+                    (System.currentTimeMillis() - start) + " ms.");
+        }
+        return new UserPool(loaded);
+    }
+
+    /**
+     * Map a document of the users mirror to the user, with the fields the Web Script invocations use
+     */
+    private static UserData toUserData(DBObject userObj) {
+        UserData user = new UserData();
+        user.setUsername((String) userObj.get(FIELD_USERNAME));
+        user.setPassword((String) userObj.get(FIELD_PASSWORD));
+        user.setCreationState(DataCreationState.valueOf((String) userObj.get(FIELD_CREATION_STATE)));
+        user.setFirstName((String) userObj.get(FIELD_FIRST_NAME));
+        user.setLastName((String) userObj.get(FIELD_LAST_NAME));
+        user.setEmail((String) userObj.get(FIELD_EMAIL));
+        user.setDomain((String) userObj.get(FIELD_DOMAIN));
+        Number randomizer = (Number) userObj.get(FIELD_RANDOMIZER);
+        if (randomizer != null) {
+            user.setRandomizer(randomizer.intValue());
+        }
+        return user;
+    }
+
+    /**
+     * An immutable snapshot of the users kept in memory
+     */
+    private static class UserPool {
+        private final UserData[] users;
+        private final Map<String, UserData> usersByUsername;
+
+        private UserPool(List<UserData> users) {
+            this.users = users.toArray(new UserData[users.size()]);
+            this.usersByUsername = new HashMap<String, UserData>(users.size() * 2);
+            for (UserData user : users) {
+                this.usersByUsername.put(user.getUsername(), user);
+            }
+        }
+    }
+}
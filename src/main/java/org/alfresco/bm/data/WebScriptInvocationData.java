@@ -20,32 +20,72 @@ package org.alfresco.bm.data;
 
 /**
  * Web Script (WS) invocation data transfer object
+ * <p/>
+ * An invocation is identified by the number of its test run and its position in the run's sequence, which are
+ * stored as two small numbers. Packed together they make the {@link #getKey() key} that travels with the events.
  *
  * @author martin.bergljung@alfresco.com
  * @since 2.0
  */
 public class WebScriptInvocationData {
-    public static final String FIELD_WS_INVOCATION_NAME = "name";
+    public static final String FIELD_WS_INVOCATION_RUN = "run";
+    public static final String FIELD_WS_INVOCATION_SEQ = "seq";
     public static final String FIELD_WS_INVOCATION_USERNAME = "username";
     public static final String FIELD_WS_INVOCATION_MESSAGE = "message";
+    public static final String FIELD_WS_INVOCATION_MESSAGE_ENCODED = "messageEncoded";
     public static final String FIELD_WS_INVOCATION_STATE = "state";
+    public static final String FIELD_WS_INVOCATION_SCHEDULED = "scheduled";
+    public static final String FIELD_WS_INVOCATION_OPERATION = "operation";
+    public static final String FIELD_WS_INVOCATION_EXPIRES = "expiresAt";
+    public static final String FIELD_WS_INVOCATION_RESUMED_BY = "resumedBy";
 
-    private String name;
+    private int run;
+    private int seq;
     private String username;
     private String message;
+    private boolean messageEncoded;
     private DataCreationState state;
+    private long scheduled;
+    private String operation;
 
     public WebScriptInvocationData() {
         state = DataCreationState.Unknown;
     }
 
-    public String getName() {
-        return name;
+    /**
+     * @return the number of the test run the invocation belongs to
+     */
+    public int getRun() {
+        return run;
+    }
+
+    public void setRun(int run) {
+        this.run = run;
+    }
+
+    /**
+     * @return the position of the invocation in the sequence of its test run
+     */
+    public int getSeq() {
+        return seq;
     }
 
-    public void setName(String processName) {
+    public void setSeq(int seq) {
+        this.seq = seq;
+    }
 
-        this.name = processName;
+    /**
+     * @return the run and sequence number packed into one number
+     */
+    public long getKey() {
+        return toKey(run, seq);
+    }
+
+    /**
+     * @return a readable name for the invocation, made up of the run and sequence number
+     */
+    public String getName() {
+        return getName(getKey());
     }
 
     public String getUsername() {
@@ -64,6 +104,17 @@ public class WebScriptInvocationData {
         this.message = message;
     }
 
+    /**
+     * @return <tt>true</tt> if the message is URL encoded already
+     */
+    public boolean isMessageEncoded() {
+        return messageEncoded;
+    }
+
+    public void setMessageEncoded(boolean messageEncoded) {
+        this.messageEncoded = messageEncoded;
+    }
+
     public DataCreationState getState() {
         return state;
     }
@@ -71,4 +122,45 @@ public class WebScriptInvocationData {
     public void setState(DataCreationState state) {
         this.state = state;
     }
+
+    /**
+     * @return the time the invocation was scheduled to happen, or 0 if not known
+     */
+    public long getScheduled() {
+        return scheduled;
+    }
+
+    public void setScheduled(long scheduled) {
+        this.scheduled = scheduled;
+    }
+
+    /**
+     * @return the name of the Web Script operation to call, or <tt>null</tt> for the default one
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Pack the run and sequence number of an invocation into one key
+     */
+    public static long toKey(int run, int seq) {
+        return ((long) run << 32) | (seq & 0xFFFFFFFFL);
+    }
+
+    public static int getRun(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int getSeq(long key) {
+        return (int) key;
+    }
+
+    public static String getName(long key) {
+        return getRun(key) + "-" + getSeq(key);
+    }
 }
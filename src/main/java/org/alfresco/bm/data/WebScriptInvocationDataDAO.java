@@ -18,42 +18,390 @@
  */
 package org.alfresco.bm.data;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
 import com.mongodb.MongoException;
 
 /**
  * Data Access Object (DAO) for Web Script (WS) Invocation data.
+ * <p/>
+ * Invocations are keyed by the number of their test run and their sequence number in the run. The run numbers are
+ * handed out from a small companion collection (<tt>&lt;collection&gt;.runs</tt>) that maps test run names to them.
+ * <p/>
+ * The invocations of a run can be purged once they are no longer needed, leaving a summary of how many there were
+ * in each state in the run's entry in the companion collection. Alternatively completed invocations can be left to
+ * expire: each one is stamped with its own expiry time, which a TTL index acts on, so runs with different times to
+ * live can share the collection.
  *
  * @author martin.bergljung@alfresco.com
  * @since 2.0
  */
 public class WebScriptInvocationDataDAO {
+    private static Log logger = LogFactory.getLog(WebScriptInvocationDataDAO.class);
+
+    /**
+     * The maximum number of sequence numbers sent in a single multi-document state update
+     */
+    private static final int MAX_SEQS_PER_UPDATE = 1000;
+
+    private static final String FIELD_RUN_ID = "_id";
+    private static final String FIELD_RUN_FQN = "fqn";
+    private static final String FIELD_RUN_SUMMARY = "summary";
+    private static final String FIELD_RUN_SUMMARIZED = "summarizedAt";
+
+    private static final String IDX_WS_INVOCATION_EXPIRES = "IDX_WS_INVOCATION_EXPIRES";
+    private static final String IDX_WS_INVOCATION_NAME = "IDX_WS_INVOCATION_NAME";
+
     /**
      * MongoDB collection that contains the WS Data
      */
     private final DBCollection collection;
 
+    /**
+     * MongoDB collection that maps test run names to run numbers
+     */
+    private final DBCollection runs;
+
+    /**
+     * Run numbers already looked up, by test run name
+     */
+    private final ConcurrentMap<String, Integer> runIds = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * How long (millisec) completed invocations are kept before the TTL index removes them, 0 to keep them
+     */
+    private volatile long completedTtlMs;
+
     /**
      * @param db         MongoDB
      * @param collection name of DB collection containing Web Script Invocation data
      */
     public WebScriptInvocationDataDAO(DB db, String collection) {
+        this(db, collection, false);
+    }
+
+    /**
+     * @param db            MongoDB
+     * @param collection    name of DB collection containing Web Script Invocation data
+     * @param migrateLegacy remove the invocations keyed by name, left in the collection by earlier versions,
+     *                      together with their unique name index
+     */
+    public WebScriptInvocationDataDAO(DB db, String collection, boolean migrateLegacy) {
         super();
         this.collection = db.getCollection(collection);
+        this.runs = db.getCollection(collection + ".runs");
 
-        // Initialize indexes
-        DBObject idx_WebScriptInvocationName = BasicDBObjectBuilder
-                .start(WebScriptInvocationData.FIELD_WS_INVOCATION_NAME, 1)
+        // Invocations used to be keyed by a unique name, which the new documents do not have
+        DBObject legacyIndex = null;
+        for (DBObject index : this.collection.getIndexInfo()) {
+            if (IDX_WS_INVOCATION_NAME.equals(index.get("name"))) {
+                legacyIndex = index;
+            }
+        }
+        if (legacyIndex != null && migrateLegacy) {
+            migrateLegacyInvocations();
+        } else if (legacyIndex != null && !Boolean.TRUE.equals(legacyIndex.get("sparse"))) {
+            throw new IllegalStateException("Collection " + collection + " holds Web Script Invocations keyed " +
+                    "by name from an earlier version, whose unique index does not allow invocations keyed by run " +
+                    "and sequence number. Set 'webscript.invocations.migrateLegacy' to remove them, " +
+                    "or use another collection.");
+        }
+
+        // Initialize indexes, sparse so that any invocations keyed by name do not clash on a missing key
+        DBObject idx_WebScriptInvocationKey = BasicDBObjectBuilder
+                .start(WebScriptInvocationData.FIELD_WS_INVOCATION_RUN, 1)
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_SEQ, 1)
                 .get();
-        DBObject opt_WebScriptInvocationName = BasicDBObjectBuilder
-                .start("name", "IDX_WS_INVOCATION_NAME")
+        DBObject opt_WebScriptInvocationKey = BasicDBObjectBuilder
+                .start("name", "IDX_WS_INVOCATION_KEY")
                 .add("unique", true)
+                .add("sparse", true)
+                .get();
+        this.collection.createIndex(idx_WebScriptInvocationKey, opt_WebScriptInvocationKey);
+
+        DBObject idx_WebScriptInvocationRunState = BasicDBObjectBuilder
+                .start(WebScriptInvocationData.FIELD_WS_INVOCATION_RUN, 1)
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_STATE, 1)
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_SEQ, 1)
+                .get();
+        DBObject opt_WebScriptInvocationRunState = BasicDBObjectBuilder
+                .start("name", "IDX_WS_INVOCATION_RUN_STATE")
+                .get();
+        this.collection.createIndex(idx_WebScriptInvocationRunState, opt_WebScriptInvocationRunState);
+
+        DBObject idx_RunFqn = BasicDBObjectBuilder
+                .start(FIELD_RUN_FQN, 1)
+                .get();
+        DBObject opt_RunFqn = BasicDBObjectBuilder
+                .start("name", "IDX_RUN_FQN")
+                .add("unique", true)
+                .get();
+        this.runs.createIndex(idx_RunFqn, opt_RunFqn);
+    }
+
+    /**
+     * Remove the invocations keyed by name, which have no run, and then their index
+     */
+    private void migrateLegacyInvocations() {
+        DBObject legacyQuery = new BasicDBObject(WebScriptInvocationData.FIELD_WS_INVOCATION_RUN,
+                new BasicDBObject("$exists", false));
+        int removed = collection.remove(legacyQuery).getN();
+        collection.dropIndex(IDX_WS_INVOCATION_NAME);
+        logger.info("Removed " + removed + " Web Script Invocations keyed by name, and their index, from " +
+                collection.getName() + ".");
+    }
+
+    /**
+     * Get the number of a test run, handing out the next free one the first time the run is seen.
+     * Drivers racing to register the same run all end up with the same number.
+     *
+     * @param testRunFqn - the name of the test run
+     * @return the number of the test run
+     */
+    public int getRunId(String testRunFqn) {
+        Integer runId = runIds.get(testRunFqn);
+        if (runId != null) {
+            return runId;
+        }
+        while (runId == null) {
+            runId = findRunId(testRunFqn);
+            if (runId != null) {
+                break;
+            }
+            int next = 1;
+            DBCursor lastRun = runs.find().sort(new BasicDBObject(FIELD_RUN_ID, -1)).limit(1);
+            try {
+                if (lastRun.hasNext()) {
+                    next = ((Number) lastRun.next().get(FIELD_RUN_ID)).intValue() + 1;
+                }
+            } finally {
+                lastRun.close();
+            }
+            try {
+                runs.insert(BasicDBObjectBuilder
+                        .start(FIELD_RUN_ID, next)
+                        .add(FIELD_RUN_FQN, testRunFqn)
+                        .get());
+                runId = next;
+            } catch (DuplicateKeyException e) {
+                // Another driver registered this run, or took the number, first: look again
+            }
+        }
+        runIds.putIfAbsent(testRunFqn, runId);
+        return runId;
+    }
+
+    /**
+     * Look up the number of a test run without registering it
+     *
+     * @param testRunFqn - the name of the test run
+     * @return the number of the test run, or <tt>null</tt> if the run is not registered
+     */
+    public Integer findRunId(String testRunFqn) {
+        DBObject runObj = runs.findOne(new BasicDBObject(FIELD_RUN_FQN, testRunFqn));
+        return runObj == null ? null : ((Number) runObj.get(FIELD_RUN_ID)).intValue();
+    }
+
+    /**
+     * @return the numbers of all registered test runs, oldest first
+     */
+    public List<Integer> getRunIds() {
+        List<Integer> result = new ArrayList<Integer>();
+        DBCursor cursor = runs.find().sort(new BasicDBObject(FIELD_RUN_ID, 1));
+        try {
+            while (cursor.hasNext()) {
+                result.add(((Number) cursor.next().get(FIELD_RUN_ID)).intValue());
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Let completed Web Script invocations expire some time after they completed. From now on every state update
+     * stamps the invocation with the time it expires, and a TTL index on it has MongoDB remove the invocation in the
+     * background. The index expires each invocation at its own time, so it is the same for every run and is never
+     * dropped: invocations of runs with another time to live, or none, are left alone.
+     *
+     * @param ttlSeconds - how long completed invocations are kept, 0 to keep them
+     */
+    public void setCompletedTtlSeconds(long ttlSeconds) {
+        if (ttlSeconds > 0L) {
+            DBObject idx_WebScriptInvocationExpires = BasicDBObjectBuilder
+                    .start(WebScriptInvocationData.FIELD_WS_INVOCATION_EXPIRES, 1)
+                    .get();
+            DBObject opt_WebScriptInvocationExpires = BasicDBObjectBuilder
+                    .start("name", IDX_WS_INVOCATION_EXPIRES)
+                    .add("expireAfterSeconds", 0)
+                    .add("sparse", true)
+                    .get();
+            collection.createIndex(idx_WebScriptInvocationExpires, opt_WebScriptInvocationExpires);
+        }
+        completedTtlMs = Math.max(0L, ttlSeconds) * 1000L;
+    }
+
+    /**
+     * Count the Web Script invocations of a run in each state
+     *
+     * @param run - the number of the test run
+     * @return the number of invocations by state, leaving out states without any
+     */
+    public DBObject countWebScriptInvocations(int run) {
+        BasicDBObjectBuilder builder = BasicDBObjectBuilder.start();
+        for (DataCreationState state : DataCreationState.values()) {
+            DBObject queryObj = BasicDBObjectBuilder
+                    .start(WebScriptInvocationData.FIELD_WS_INVOCATION_RUN, run)
+                    .add(WebScriptInvocationData.FIELD_WS_INVOCATION_STATE, state.toString())
+                    .get();
+            long count = collection.count(queryObj);
+            if (count > 0L) {
+                builder.add(state.toString(), count);
+            }
+        }
+        return builder.get();
+    }
+
+    /**
+     * Keep a summary with the entry of a test run. Only the first summary of a run is kept, so a summary made
+     * after the invocations were (partly) purged does not replace the complete one.
+     *
+     * @param run     - the number of the test run
+     * @param summary - the summary, such as the {@link #countWebScriptInvocations(int) counts by state}
+     * @return <tt>true</tt> if the summary was kept
+     */
+    public boolean saveRunSummary(int run, DBObject summary) {
+        DBObject findObj = BasicDBObjectBuilder
+                .start(FIELD_RUN_ID, run)
+                .push(FIELD_RUN_SUMMARY)
+                .append("$exists", false)
+                .pop()
                 .get();
-        this.collection.createIndex(idx_WebScriptInvocationName, opt_WebScriptInvocationName);
+        DBObject setObj = BasicDBObjectBuilder
+                .start()
+                .push("$set")
+                .append(FIELD_RUN_SUMMARY, summary)
+                .append(FIELD_RUN_SUMMARIZED, new Date())
+                .pop()
+                .get();
+        return runs.update(findObj, setObj).getN() > 0;
+    }
+
+    /**
+     * @param run - the number of the test run
+     * @return the summary kept with the run, or <tt>null</tt> if there is none
+     */
+    public DBObject getRunSummary(int run) {
+        DBObject runObj = runs.findOne(new BasicDBObject(FIELD_RUN_ID, run));
+        return runObj == null ? null : (DBObject) runObj.get(FIELD_RUN_SUMMARY);
+    }
+
+    /**
+     * Find the next page of Web Script invocations of a run that are still scheduled, in sequence order. Paging
+     * goes by sequence number, so each page is read straight off the run and state index however far along it is.
+     *
+     * @param run       - the number of the test run
+     * @param afterSeq  - the sequence number of the last invocation of the previous page, or -1 for the first page
+     * @param claimedBy - leave out invocations already claimed by this run
+     * @param limit     - the maximum number of invocations to return
+     * @return the invocations, in sequence order
+     */
+    public List<WebScriptInvocationData> findScheduledWebScriptInvocations(int run, int afterSeq, int claimedBy, int limit) {
+        DBObject queryObj = BasicDBObjectBuilder
+                .start(WebScriptInvocationData.FIELD_WS_INVOCATION_RUN, run)
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_STATE, DataCreationState.Scheduled.toString())
+                .push(WebScriptInvocationData.FIELD_WS_INVOCATION_SEQ)
+                .append("$gt", afterSeq)
+                .pop()
+                .push(WebScriptInvocationData.FIELD_WS_INVOCATION_RESUMED_BY)
+                .append("$ne", claimedBy)
+                .pop()
+                .get();
+        List<WebScriptInvocationData> result = new ArrayList<WebScriptInvocationData>(limit);
+        DBCursor cursor = collection
+                .find(queryObj)
+                .sort(new BasicDBObject(WebScriptInvocationData.FIELD_WS_INVOCATION_SEQ, 1))
+                .limit(limit)
+                .batchSize(limit);
+        try {
+            while (cursor.hasNext()) {
+                result.add(fromDBObject(cursor.next()));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Mark still scheduled Web Script invocations of a run as claimed by another run, so that run does not pick
+     * them up again. Their scheduled time is cleared, as they will be invoked on the timeline of the claiming run.
+     *
+     * @param run       - the number of the test run the invocations belong to
+     * @param seqs      - the sequence numbers of the invocations
+     * @param claimedBy - the number of the run claiming them
+     * @return the number of invocations claimed
+     */
+    public int claimWebScriptInvocations(int run, Collection<Integer> seqs, int claimedBy) {
+        DBObject findObj = BasicDBObjectBuilder
+                .start(WebScriptInvocationData.FIELD_WS_INVOCATION_RUN, run)
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_STATE, DataCreationState.Scheduled.toString())
+                .push(WebScriptInvocationData.FIELD_WS_INVOCATION_SEQ)
+                .append("$in", new ArrayList<Integer>(seqs))
+                .pop()
+                .get();
+        DBObject setObj = BasicDBObjectBuilder
+                .start()
+                .push("$set")
+                .append(WebScriptInvocationData.FIELD_WS_INVOCATION_RESUMED_BY, claimedBy)
+                .append(WebScriptInvocationData.FIELD_WS_INVOCATION_SCHEDULED, 0L)
+                .pop()
+                .get();
+        return collection.update(findObj, setObj, false, true).getN();
+    }
+
+    /**
+     * Remove the Web Script invocations of a run that are in one of the given states
+     *
+     * @param run    - the number of the test run
+     * @param states - the states of the invocations to remove
+     * @return the number of invocations removed
+     */
+    public int purgeWebScriptInvocations(int run, Collection<DataCreationState> states) {
+        List<String> stateNames = new ArrayList<String>(states.size());
+        for (DataCreationState state : states) {
+            stateNames.add(state.toString());
+        }
+        DBObject queryObj = BasicDBObjectBuilder
+                .start(WebScriptInvocationData.FIELD_WS_INVOCATION_RUN, run)
+                .push(WebScriptInvocationData.FIELD_WS_INVOCATION_STATE)
+                .append("$in", stateNames)
+                .pop()
+                .get();
+        return collection.remove(queryObj).getN();
     }
 
     /**
@@ -64,13 +412,7 @@ public class WebScriptInvocationDataDAO {
      * @return <tt>true</tt> if the insert was successful
      */
     public boolean createWebScriptInvocation(WebScriptInvocationData webScriptInvocation) {
-        DBObject insertObj = BasicDBObjectBuilder
-                .start()
-                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_NAME, webScriptInvocation.getName())
-                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_MESSAGE, webScriptInvocation.getMessage())
-                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_USERNAME, webScriptInvocation.getUsername())
-                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_STATE, webScriptInvocation.getState().toString())
-                .get();
+        DBObject insertObj = toDBObject(webScriptInvocation);
         try {
             collection.insert(insertObj);
             return true;
@@ -81,49 +423,180 @@ public class WebScriptInvocationDataDAO {
     }
 
     /**
-     * Find a Web Script Invocation by unique name
+     * Create a batch of new Web Script invocations using a single unordered bulk insert.
+     * A document that cannot be inserted does not stop the rest of the batch from being written;
+     * each failure is logged with the name of the invocation and the reason.
+     *
+     * @param webScriptInvocations - the Web Script Invocation data to insert
+     * @return the invocations that were actually written, in the order they were given
+     */
+    public List<WebScriptInvocationData> createWebScriptInvocations(List<WebScriptInvocationData> webScriptInvocations) {
+        if (webScriptInvocations.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        BulkWriteOperation bulkInsert = collection.initializeUnorderedBulkOperation();
+        for (WebScriptInvocationData webScriptInvocation : webScriptInvocations) {
+            bulkInsert.insert(toDBObject(webScriptInvocation));
+        }
+        try {
+            bulkInsert.execute();
+            return webScriptInvocations;
+        } catch (BulkWriteException e) {
+            // Some of the documents made it, work out which ones did not
+            Set<Integer> failedIndexes = new HashSet<Integer>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                failedIndexes.add(error.getIndex());
+                logger.warn("Failed to create Web Script Invocation '" +
+                        webScriptInvocations.get(error.getIndex()).getName() + "': " + error.getMessage());
+            }
+            List<WebScriptInvocationData> created =
+                    new ArrayList<WebScriptInvocationData>(webScriptInvocations.size() - failedIndexes.size());
+            for (int i = 0; i < webScriptInvocations.size(); i++) {
+                if (!failedIndexes.contains(i)) {
+                    created.add(webScriptInvocations.get(i));
+                }
+            }
+            return created;
+        } catch (MongoException e) {
+            logger.warn("Failed to create batch of " + webScriptInvocations.size() + " Web Script Invocations.", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Find a Web Script Invocation by its unique key
      *
-     * @param webScriptInvocationName - the name of the Web Script invocation to find
+     * @param webScriptInvocationKey - the {@link WebScriptInvocationData#getKey() key} of the Web Script invocation to find
      * @return Returns the data or <tt>null</tt> if not found
      */
-    public WebScriptInvocationData findWebScriptInvocationByName(String webScriptInvocationName) {
-        DBObject queryObj = BasicDBObjectBuilder
-                .start()
-                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_NAME, webScriptInvocationName)
-                .get();
+    public WebScriptInvocationData findWebScriptInvocationByKey(long webScriptInvocationKey) {
+        DBObject queryObj = createKeyQuery(webScriptInvocationKey);
         DBObject resultObj = collection.findOne(queryObj);
         if (resultObj == null) {
             return null;
         } else {
-            WebScriptInvocationData result = new WebScriptInvocationData();
-            String stateStr = (String) resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_STATE);
-            DataCreationState state = DataCreationState.valueOf(stateStr);
-            result.setState(state);
-            result.setName((String) resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_NAME));
-            result.setMessage((String) resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_MESSAGE));
-            result.setUsername((String) resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_USERNAME));
-            return result;
+            return fromDBObject(resultObj);
         }
     }
 
     /**
      * Set the state of a Web Script invocation
      *
-     * @param webScriptInvocationName - the name of the Web Script invocation to update
-     * @param state                   the new invocation state
+     * @param webScriptInvocationKey - the key of the Web Script invocation to update
+     * @param state                  the new invocation state
      * @return <tt>true</tt> if the update was successful
      */
-    public boolean updateWebScriptInvacationState(String webScriptInvocationName, DataCreationState state) {
-        DBObject findObj = new BasicDBObject()
-                .append(WebScriptInvocationData.FIELD_WS_INVOCATION_NAME, webScriptInvocationName);
-        DBObject setObj = BasicDBObjectBuilder
+    public boolean updateWebScriptInvacationState(long webScriptInvocationKey, DataCreationState state) {
+        DBObject findObj = createKeyQuery(webScriptInvocationKey);
+        DBObject setObj = createStateUpdate(state);
+        DBObject foundObj = collection.findAndModify(findObj, setObj);
+        return foundObj != null;
+    }
+
+    /**
+     * Set the state of a number of Web Script invocations in one go
+     *
+     * @param webScriptInvocationKeys - the keys of the Web Script invocations to update
+     * @param state                   the new invocation state
+     * @return the number of Web Script invocations that were updated
+     */
+    public int updateWebScriptInvocationStates(Collection<Long> webScriptInvocationKeys, DataCreationState state) {
+        DBObject setObj = createStateUpdate(state);
+        // Nearly always all from the same run, so one query per run and chunk of sequence numbers
+        Map<Integer, List<Integer>> seqsByRun = new HashMap<Integer, List<Integer>>();
+        for (long key : webScriptInvocationKeys) {
+            Integer run = WebScriptInvocationData.getRun(key);
+            List<Integer> seqs = seqsByRun.get(run);
+            if (seqs == null) {
+                seqs = new ArrayList<Integer>();
+                seqsByRun.put(run, seqs);
+            }
+            seqs.add(WebScriptInvocationData.getSeq(key));
+        }
+        int updated = 0;
+        for (Map.Entry<Integer, List<Integer>> entry : seqsByRun.entrySet()) {
+            List<Integer> seqs = entry.getValue();
+            for (int i = 0; i < seqs.size(); i += MAX_SEQS_PER_UPDATE) {
+                List<Integer> chunk = seqs.subList(i, Math.min(i + MAX_SEQS_PER_UPDATE, seqs.size()));
+                DBObject findObj = BasicDBObjectBuilder
+                        .start(WebScriptInvocationData.FIELD_WS_INVOCATION_RUN, entry.getKey())
+                        .push(WebScriptInvocationData.FIELD_WS_INVOCATION_SEQ)
+                        .append("$in", chunk)
+                        .pop()
+                        .get();
+                updated += collection.update(findObj, setObj, false, true).getN();
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * The update that sets the state of invocations, and stamps them as completed if they are to expire
+     */
+    private DBObject createStateUpdate(DataCreationState state) {
+        BasicDBObjectBuilder builder = BasicDBObjectBuilder
                 .start()
                 .push("$set")
-                .append(WebScriptInvocationData.FIELD_WS_INVOCATION_STATE, state.toString())
-                .pop()
+                .append(WebScriptInvocationData.FIELD_WS_INVOCATION_STATE, state.toString());
+        long ttlMs = completedTtlMs;
+        if (ttlMs > 0L) {
+            builder.append(WebScriptInvocationData.FIELD_WS_INVOCATION_EXPIRES,
+                    new Date(System.currentTimeMillis() + ttlMs));
+        }
+        return builder.pop().get();
+    }
+
+    /**
+     * The query on the compound index that finds an invocation by its key
+     */
+    private static DBObject createKeyQuery(long webScriptInvocationKey) {
+        return BasicDBObjectBuilder
+                .start(WebScriptInvocationData.FIELD_WS_INVOCATION_RUN, WebScriptInvocationData.getRun(webScriptInvocationKey))
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_SEQ, WebScriptInvocationData.getSeq(webScriptInvocationKey))
                 .get();
-        DBObject foundObj = collection.findAndModify(findObj, setObj);
-        return foundObj != null;
     }
-}
 
+    /**
+     * Map a Web Script Invocation to the document stored in the collection.
+     * The same document can be used as event data to carry the whole invocation along with an event.
+     */
+    public static DBObject toDBObject(WebScriptInvocationData webScriptInvocation) {
+        BasicDBObjectBuilder builder = BasicDBObjectBuilder
+                .start()
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_RUN, webScriptInvocation.getRun())
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_SEQ, webScriptInvocation.getSeq())
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_MESSAGE, webScriptInvocation.getMessage())
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_USERNAME, webScriptInvocation.getUsername())
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_STATE, webScriptInvocation.getState().toString())
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_SCHEDULED, webScriptInvocation.getScheduled())
+                .add(WebScriptInvocationData.FIELD_WS_INVOCATION_OPERATION, webScriptInvocation.getOperation());
+        if (webScriptInvocation.isMessageEncoded()) {
+            // Only stored when set, as most messages are not
+            builder.add(WebScriptInvocationData.FIELD_WS_INVOCATION_MESSAGE_ENCODED, true);
+        }
+        return builder.get();
+    }
+
+    /**
+     * Map a document from the collection, or event data, back to a Web Script Invocation
+     */
+    public static WebScriptInvocationData fromDBObject(DBObject resultObj) {
+        WebScriptInvocationData result = new WebScriptInvocationData();
+        String stateStr = (String) resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_STATE);
+        DataCreationState state = DataCreationState.valueOf(stateStr);
+        result.setState(state);
+        result.setRun(((Number) resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_RUN)).intValue());
+        result.setSeq(((Number) resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_SEQ)).intValue());
+        result.setMessage((String) resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_MESSAGE));
+        result.setUsername((String) resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_USERNAME));
+        Number scheduled = (Number) resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_SCHEDULED);
+        if (scheduled != null) {
+            result.setScheduled(scheduled.longValue());
+        }
+        result.setOperation((String) resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_OPERATION));
+        Object messageEncoded = resultObj.get(WebScriptInvocationData.FIELD_WS_INVOCATION_MESSAGE_ENCODED);
+        result.setMessageEncoded(Boolean.TRUE.equals(messageEncoded));
+        return result;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.DBObject;
+
+/**
+ * Keeps the Web Script (WS) Invocation mirror from growing forever.
+ * <p/>
+ * When a test run starts, the invocations of all but the most recent runs are purged: those in the purged states
+ * (by default the completed ones, Created and Failed) are removed in bulk, one run at a time. If summaries are kept,
+ * the number of invocations in each state is first stored with the run's entry, so the totals of old runs stay
+ * available after their invocations are gone. Optionally completed invocations also expire on their own, a set time
+ * after they completed. Expired invocations leave no summary behind, as nothing counts them before they go, so
+ * expiry cannot be combined with summaries.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class WebScriptInvocationRetention {
+    private static Log logger = LogFactory.getLog(WebScriptInvocationRetention.class);
+
+    private final WebScriptInvocationDataDAO webScriptInvocationDataDAO;
+    private final String testRunFqn;
+
+    private int keepRuns;
+    private List<DataCreationState> purgeStates;
+    private boolean summary;
+    private long completedTtlSeconds;
+
+    /**
+     * @param webScriptInvocationDataDAO the DAO of the invocation mirror
+     * @param testRunFqn                 the name of the test run that is starting
+     */
+    public WebScriptInvocationRetention(WebScriptInvocationDataDAO webScriptInvocationDataDAO, String testRunFqn) {
+        this.webScriptInvocationDataDAO = webScriptInvocationDataDAO;
+        this.testRunFqn = testRunFqn;
+        this.keepRuns = 0;
+        this.purgeStates = new ArrayList<DataCreationState>();
+        this.purgeStates.add(DataCreationState.Created);
+        this.purgeStates.add(DataCreationState.Failed);
+        this.summary = true;
+        this.completedTtlSeconds = 0L;
+    }
+
+    /**
+     * The number of most recent runs, including this one, whose invocations are kept, 0 to keep all runs
+     */
+    public void setKeepRuns(int keepRuns) {
+        this.keepRuns = keepRuns;
+    }
+
+    /**
+     * The comma-separated states of the invocations to purge (default: <tt>Created,Failed</tt>)
+     */
+    public void setPurgeStates(String purgeStates) {
+        List<DataCreationState> states = new ArrayList<DataCreationState>();
+        for (String state : purgeStates.split(",")) {
+            if (state.trim().length() > 0) {
+                states.add(DataCreationState.valueOf(state.trim()));
+            }
+        }
+        this.purgeStates = states;
+    }
+
+    /**
+     * Keep the number of invocations in each state with the entry of a run before purging it (default: <tt>true</tt>)
+     */
+    public void setSummary(boolean summary) {
+        this.summary = summary;
+    }
+
+    /**
+     * How long (seconds) completed invocations are kept before they expire, 0 to keep them (default)
+     */
+    public void setCompletedTtlSeconds(long completedTtlSeconds) {
+        this.completedTtlSeconds = completedTtlSeconds;
+    }
+
+    public void start() {
+        if (summary && completedTtlSeconds > 0L) {
+            throw new IllegalStateException("Completed Web Script Invocations that expire are gone before their run " +
+                    "is summarized. Switch off 'webscript.invocations.retention.summary' to let them expire.");
+        }
+        webScriptInvocationDataDAO.setCompletedTtlSeconds(completedTtlSeconds);
+        int currentRun = webScriptInvocationDataDAO.getRunId(testRunFqn);
+        if (keepRuns <= 0 || purgeStates.isEmpty()) {
+            return;
+        }
+
+        List<Integer> runs = webScriptInvocationDataDAO.getRunIds();
+        for (int i = 0; i < runs.size() - keepRuns; i++) {
+            int run = runs.get(i);
+            if (run == currentRun) {
+                continue;
+            }
+            purge(run);
+        }
+    }
+
+    /**
+     * Summarize, if we keep summaries, and purge the invocations of a run
+     *
+     * @return the number of invocations purged
+     */
+    public int purge(int run) {
+        long start = System.currentTimeMillis();
+        if (summary && webScriptInvocationDataDAO.getRunSummary(run) == null) {
+            DBObject counts = webScriptInvocationDataDAO.countWebScriptInvocations(run);
+            webScriptInvocationDataDAO.saveRunSummary(run, counts);
+        }
+        int purged = webScriptInvocationDataDAO.purgeWebScriptInvocations(run, purgeStates);
+        if (purged > 0) {
+            logger.info("Purged " + purged + " " + purgeStates + " Web Script Invocations of run " + run + " in " +
+                    (System.currentTimeMillis() - start) + " ms.");
+        }
+        return purged;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.data;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.MongoException;
+
+/**
+ * Write-behind updater for Web Script (WS) Invocation state.
+ * <p/>
+ * State transitions are queued in memory and written to MongoDB periodically, in bulk, by a background thread.
+ * Transitions for the same invocation are coalesced so only the last state is written. The queue is bounded;
+ * when it is full {@link #submit(long, DataCreationState)} returns <tt>false</tt> and the caller is expected
+ * to write the state itself. Anything still queued is flushed when the updater is {@link #stop() stopped}.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class WebScriptInvocationStateUpdater {
+    private static Log logger = LogFactory.getLog(WebScriptInvocationStateUpdater.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000L;
+    public static final int DEFAULT_MAX_PENDING = 100000;
+
+    /**
+     * Web Script Invocation data access object
+     */
+    private final WebScriptInvocationDataDAO webScriptInvocationDataDAO;
+
+    /**
+     * Is write-behind switched on, if not nothing is queued
+     */
+    private boolean enabled;
+
+    /**
+     * How often (millisec) queued state transitions are written to MongoDB
+     */
+    private long flushIntervalMs;
+
+    /**
+     * The maximum number of invocations that can have a state transition queued
+     */
+    private int maxPending;
+
+    /**
+     * Queued state transitions by invocation key, guarded by {@link #lock}
+     */
+    private Map<Long, DataCreationState> pending;
+    private boolean stopped;
+    private final Object lock = new Object();
+
+    private ScheduledExecutorService executor;
+
+    private final AtomicLong submittedUpdates = new AtomicLong();
+    private final AtomicLong coalescedUpdates = new AtomicLong();
+    private final AtomicLong rejectedUpdates = new AtomicLong();
+    private final AtomicLong failedUpdates = new AtomicLong();
+    private final AtomicLong writtenUpdates = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong totalFlushTimeNs = new AtomicLong();
+    private final AtomicLong maxFlushTimeNs = new AtomicLong();
+
+    /**
+     * @param webScriptInvocationDataDAO the DAO used to write the state transitions
+     */
+    public WebScriptInvocationStateUpdater(WebScriptInvocationDataDAO webScriptInvocationDataDAO) {
+        super();
+        this.webScriptInvocationDataDAO = webScriptInvocationDataDAO;
+        this.enabled = false;
+        this.flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+        this.maxPending = DEFAULT_MAX_PENDING;
+        this.pending = new HashMap<Long, DataCreationState>();
+    }
+
+    /**
+     * Switch on write-behind of state transitions (default: <tt>false</tt>)
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_FLUSH_INTERVAL_MS default} time between writes to MongoDB
+     */
+    public void setFlushIntervalMs(long flushIntervalMs) {
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_PENDING default} bound on queued state transitions
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Start the background writer, if write-behind is switched on
+     */
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WebScriptInvocationStateUpdater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable e) {
+                    logger.error("Failed to flush Web Script Invocation state updates.", e);
+                }
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background writer and write out everything that is still queued
+     */
+    public void stop() throws InterruptedException {
+        synchronized (lock) {
+            stopped = true;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(flushIntervalMs * 10, TimeUnit.MILLISECONDS);
+        }
+        flush();
+
+        if (enabled) {
+            logger.info("Web Script Invocation state updater stopped: " + writtenUpdates.get() + " written, " +
+                    coalescedUpdates.get() + " coalesced, " + rejectedUpdates.get() + " rejected, " +
+                    failedUpdates.get() + " failed in " + flushCount.get() + " flushes (average " +
+                    getAverageFlushTimeMs() + " ms, max " + getMaxFlushTimeMs() + " ms).");
+        }
+    }
+
+    /**
+     * Queue a state transition for a Web Script invocation
+     *
+     * @param webScriptInvocationKey - the key of the Web Script invocation to update
+     * @param state                  the new invocation state
+     * @return <tt>true</tt> if the transition was queued, <tt>false</tt> if the caller has to write it
+     */
+    public boolean submit(long webScriptInvocationKey, DataCreationState state) {
+        if (!enabled) {
+            return false;
+        }
+        synchronized (lock) {
+            if (stopped) {
+                return false;
+            }
+            if (pending.size() >= maxPending && !pending.containsKey(webScriptInvocationKey)) {
+                rejectedUpdates.incrementAndGet();
+                return false;
+            }
+            if (pending.put(webScriptInvocationKey, state) != null) {
+                coalescedUpdates.incrementAndGet();
+            }
+        }
+        submittedUpdates.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Write all queued state transitions to MongoDB, one bulk update per target state
+     */
+    public void flush() {
+        Map<Long, DataCreationState> toWrite;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            toWrite = pending;
+            pending = new HashMap<Long, DataCreationState>();
+        }
+
+        Map<DataCreationState, List<Long>> keysByState =
+                new EnumMap<DataCreationState, List<Long>>(DataCreationState.class);
+        for (Map.Entry<Long, DataCreationState> entry : toWrite.entrySet()) {
+            List<Long> keys = keysByState.get(entry.getValue());
+            if (keys == null) {
+                keys = new ArrayList<Long>();
+                keysByState.put(entry.getValue(), keys);
+            }
+            keys.add(entry.getKey());
+        }
+
+        long start = System.nanoTime();
+        for (Map.Entry<DataCreationState, List<Long>> entry : keysByState.entrySet()) {
+            List<Long> keys = entry.getValue();
+            try {
+                int updated = webScriptInvocationDataDAO.updateWebScriptInvocationStates(keys, entry.getKey());
+                writtenUpdates.addAndGet(updated);
+                failedUpdates.addAndGet(keys.size() - updated);
+            } catch (MongoException e) {
+                failedUpdates.addAndGet(keys.size());
+                logger.error("Failed to set " + keys.size() + " Web Script Invocations to " + entry.getKey(), e);
+            }
+        }
+        long flushTime = System.nanoTime() - start;
+
+        flushCount.incrementAndGet();
+        totalFlushTimeNs.addAndGet(flushTime);
+        long max = maxFlushTimeNs.get();
+        while (flushTime > max && !maxFlushTimeNs.compareAndSet(max, flushTime)) {
+            max = maxFlushTimeNs.get();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Flushed " + toWrite.size() + " Web Script Invocation state updates in " +
+                    (flushTime / 1000000L) + " ms, " + getQueueDepth() + " queued since.");
+        }
+    }
+
+    /**
+     * @return the number of invocations with a state transition waiting to be written
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    public long getSubmittedUpdates() {
+        return submittedUpdates.get();
+    }
+
+    public long getCoalescedUpdates() {
+        return coalescedUpdates.get();
+    }
+
+    /**
+     * @return the number of state transitions turned away because the queue was full
+     */
+    public long getRejectedUpdates() {
+        return rejectedUpdates.get();
+    }
+
+    /**
+     * @return the number of state transitions that could not be written to MongoDB
+     */
+    public long getFailedUpdates() {
+        return failedUpdates.get();
+    }
+
+    public long getWrittenUpdates() {
+        return writtenUpdates.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public long getAverageFlushTimeMs() {
+        long count = flushCount.get();
+        return count == 0 ? 0L : totalFlushTimeNs.get() / count / 1000000L;
+    }
+
+    public long getMaxFlushTimeMs() {
+        return maxFlushTimeNs.get() / 1000000L;
+    }
+}
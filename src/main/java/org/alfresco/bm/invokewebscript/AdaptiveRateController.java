@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.alfresco.bm.event.EventRecord;
+import org.alfresco.bm.event.ResultService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+
+/**
+ * Searches for the highest rate the server sustains within a service level agreement (SLA).
+ * <p/>
+ * The rate starts low and is raised step by step. At the end of each step the results of the Web Script calls
+ * started during the step are read back from the {@link ResultService}, so the calls of all drivers count, and
+ * their p95 and p99 response times and error ratio are checked against the SLA. While the SLA holds the rate of
+ * the step is the highest sustained rate so far and the next step raises it; once the SLA is breached the load
+ * either backs off to the highest sustained rate and holds there, or stops.
+ * <p/>
+ * Every result counts towards the error ratio, but only results that carry a response time go into the
+ * percentiles: successful calls recorded only as aggregates have no result data, and their event time is the
+ * service time rather than the response time.
+ * <p/>
+ * The controller keeps no state of its own: the state travels in the data of the rescheduled scheduling event, so
+ * whichever driver processes the next batch carries on where the last one stopped.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class AdaptiveRateController {
+    private static Log logger = LogFactory.getLog(AdaptiveRateController.class);
+
+    public static final String ON_BREACH_HOLD = "hold";
+    public static final String ON_BREACH_STOP = "stop";
+
+    /**
+     * Fields of the state
+     */
+    public static final String FIELD_RATE = "rate";
+    public static final String FIELD_STEP_START = "stepStart";
+    public static final String FIELD_BEST_RATE = "bestRate";
+    public static final String FIELD_PHASE = "phase";
+
+    private static final String PHASE_RAMP = "ramp";
+    private static final String PHASE_HOLD = "hold";
+    private static final String PHASE_STOPPED = "stopped";
+
+    /**
+     * Steps with fewer timed results than this are extended rather than judged
+     */
+    private static final int MIN_SAMPLES = 20;
+    private static final int PAGE_SIZE = 1000;
+
+    private final ResultService resultService;
+    private final String eventName;
+
+    private boolean enabled;
+    private double startRate;
+    private double rateIncrement;
+    private long stepMs;
+    private double maxRate;
+    private long slaP95Ms;
+    private long slaP99Ms;
+    private double maxErrorRatio;
+    private String onBreach;
+    private int maxSamples;
+
+    /**
+     * @param resultService the results of the test run
+     * @param eventName     the name of the events whose results are checked against the SLA
+     */
+    public AdaptiveRateController(ResultService resultService, String eventName) {
+        this.resultService = resultService;
+        this.eventName = eventName;
+        this.enabled = false;
+        this.startRate = 1.0;
+        this.rateIncrement = 1.0;
+        this.stepMs = 60000L;
+        this.maxRate = 1000.0;
+        this.slaP95Ms = 1000L;
+        this.slaP99Ms = 2000L;
+        this.maxErrorRatio = 0.01;
+        this.onBreach = ON_BREACH_HOLD;
+        this.maxSamples = 10000;
+    }
+
+    /**
+     * Switch on the adaptive rate (default: <tt>false</tt>), when off the arrival model decides the rate
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The rate (invocations/sec) of the first step
+     */
+    public void setStartRate(double startRate) {
+        this.startRate = startRate;
+    }
+
+    /**
+     * How much the rate (invocations/sec) is raised after each step within the SLA
+     */
+    public void setRateIncrement(double rateIncrement) {
+        this.rateIncrement = rateIncrement;
+    }
+
+    /**
+     * How long each step runs before it is judged
+     */
+    public void setStepSeconds(int stepSeconds) {
+        this.stepMs = stepSeconds * 1000L;
+    }
+
+    /**
+     * The rate (invocations/sec) at which the search ends even if the SLA still holds
+     */
+    public void setMaxRate(double maxRate) {
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * The SLA on the 95th percentile of the response times, 0 to not check it
+     */
+    public void setSlaP95Ms(long slaP95Ms) {
+        this.slaP95Ms = slaP95Ms;
+    }
+
+    /**
+     * The SLA on the 99th percentile of the response times, 0 to not check it
+     */
+    public void setSlaP99Ms(long slaP99Ms) {
+        this.slaP99Ms = slaP99Ms;
+    }
+
+    /**
+     * The SLA on the share of calls that fail
+     */
+    public void setMaxErrorRatio(double maxErrorRatio) {
+        this.maxErrorRatio = maxErrorRatio;
+    }
+
+    /**
+     * What to do once the SLA is breached: {@link #ON_BREACH_HOLD} or {@link #ON_BREACH_STOP}
+     */
+    public void setOnBreach(String onBreach) {
+        if (!ON_BREACH_HOLD.equals(onBreach) && !ON_BREACH_STOP.equals(onBreach)) {
+            throw new IllegalArgumentException("Unknown SLA breach action '" + onBreach + "'.");
+        }
+        this.onBreach = onBreach;
+    }
+
+    /**
+     * The maximum number of results read back to judge a step
+     */
+    public void setMaxSamples(int maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * @return the state of the first step, starting now
+     */
+    public DBObject start(long now) {
+        logger.info("Adaptive rate search starting at " + startRate + " invocations/sec.");
+        return state(startRate, now, 0.0, PHASE_RAMP);
+    }
+
+    /**
+     * Move the search on: judge the current step if it is over and decide on the rate of the next one
+     *
+     * @param state the state carried by the scheduling event
+     * @param now   the current time
+     * @return the new state
+     */
+    public DBObject update(DBObject state, long now) {
+        double rate = getRate(state);
+        long stepStart = ((Number) state.get(FIELD_STEP_START)).longValue();
+        double bestRate = getBestRate(state);
+        String phase = (String) state.get(FIELD_PHASE);
+        if (!PHASE_RAMP.equals(phase) || now - stepStart < stepMs) {
+            return state;
+        }
+
+        // Read back what the calls of this step achieved
+        long[] responseTimes = new long[maxSamples];
+        int calls = 0;
+        int samples = 0;
+        int failures = 0;
+        for (int skip = 0; calls < maxSamples; skip += PAGE_SIZE) {
+            List<EventRecord> page = resultService.getResults(stepStart, eventName, null, skip, PAGE_SIZE);
+            for (EventRecord record : page) {
+                if (calls == maxSamples) {
+                    break;
+                }
+                calls++;
+                if (!record.isSuccess()) {
+                    failures++;
+                }
+                long responseTime = getResponseTime(record);
+                if (responseTime >= 0L) {
+                    responseTimes[samples++] = responseTime;
+                }
+            }
+            if (page.size() < PAGE_SIZE) {
+                break;
+            }
+        }
+        if (samples < MIN_SAMPLES) {
+            String msg = "Only " + samples + " timed results of " + calls + " '" + eventName +
+                    "' results for the step at " + rate + " invocations/sec, extending it.";
+            if (now - stepStart >= 2L * stepMs) {
+                logger.warn(msg);
+            } else {
+                logger.debug(msg);
+            }
+            return state;
+        }
+        Arrays.sort(responseTimes, 0, samples);
+        long p95 = responseTimes[Math.min(samples - 1, (int) Math.ceil(samples * 0.95) - 1)];
+        long p99 = responseTimes[Math.min(samples - 1, (int) Math.ceil(samples * 0.99) - 1)];
+        double errorRatio = failures / (double) calls;
+
+        boolean breached = (slaP95Ms > 0L && p95 > slaP95Ms) ||
+                (slaP99Ms > 0L && p99 > slaP99Ms) ||
+                errorRatio > maxErrorRatio;
+        logger.info(String.format(
+                "Adaptive rate step at %.1f invocations/sec: p95=%dms p99=%dms of %d/%d calls, errors=%.2f%%, SLA %s.",
+                rate, p95, p99, samples, calls, errorRatio * 100.0, breached ? "breached" : "met"));
+
+        if (!breached) {
+            bestRate = rate;
+            if (rate + rateIncrement > maxRate) {
+                logger.info("Adaptive rate search reached the maximum rate, holding at " + bestRate + " invocations/sec.");
+                return state(bestRate, now, bestRate, PHASE_HOLD);
+            }
+            return state(rate + rateIncrement, now, bestRate, PHASE_RAMP);
+        } else if (ON_BREACH_STOP.equals(onBreach) || bestRate <= 0.0) {
+            logger.info("Adaptive rate search stopped, highest sustained rate " + bestRate + " invocations/sec.");
+            return state(rate, now, bestRate, PHASE_STOPPED);
+        } else {
+            logger.info("Adaptive rate search backing off, holding at the highest sustained rate " + bestRate +
+                    " invocations/sec.");
+            return state(bestRate, now, bestRate, PHASE_HOLD);
+        }
+    }
+
+    /**
+     * @return the rate (invocations/sec) to schedule at
+     */
+    public double getRate(DBObject state) {
+        return ((Number) state.get(FIELD_RATE)).doubleValue();
+    }
+
+    /**
+     * @return the highest rate (invocations/sec) sustained within the SLA so far
+     */
+    public double getBestRate(DBObject state) {
+        return ((Number) state.get(FIELD_BEST_RATE)).doubleValue();
+    }
+
+    /**
+     * @return <tt>true</tt> if no more invocations should be scheduled
+     */
+    public boolean isStopped(DBObject state) {
+        return PHASE_STOPPED.equals(state.get(FIELD_PHASE));
+    }
+
+    /**
+     * The response time from the result data, which includes the schedule lag
+     *
+     * @return the response time, or -1 if the result does not carry one
+     */
+    private long getResponseTime(EventRecord record) {
+        Object data = record.getData();
+        if (data instanceof DBObject) {
+            Object responseTime = ((DBObject) data).get(InvokeWebScriptEventProcessor.RESULT_FIELD_RESPONSE_TIME);
+            if (responseTime instanceof Number) {
+                return ((Number) responseTime).longValue();
+            }
+        }
+        return -1L;
+    }
+
+    private static DBObject state(double rate, long stepStart, double bestRate, String phase) {
+        return BasicDBObjectBuilder
+                .start(FIELD_RATE, rate)
+                .add(FIELD_STEP_START, stepStart)
+                .add(FIELD_BEST_RATE, bestRate)
+                .add(FIELD_PHASE, phase)
+                .get();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Keeps the outcome of Web Script calls as per-interval aggregates on each driver, so that not every call needs a
+ * full result record.
+ * <p/>
+ * Every call is counted in {@link CallCounts}, by event name and HTTP status, with its response time in an
+ * HdrHistogram. Every interval (a second by default) the driver writes one compact document with the counts, errors
+ * by status, the main percentiles and the compressed histogram of each event name to the
+ * <tt>&lt;testRunFqn&gt;.aggregates</tt> collection; the histograms of all drivers can be added up for the whole run. Failed calls are always
+ * {@link #isRecordedInFull(boolean) recorded in full}, successful ones only for the configured share of samples.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class AggregatedResultRecorder {
+    private static Log logger = LogFactory.getLog(AggregatedResultRecorder.class);
+
+    public static final int DEFAULT_INTERVAL_SECONDS = 1;
+
+    /**
+     * Fields of the aggregate documents
+     */
+    public static final String FIELD_DRIVER = "driver";
+    public static final String FIELD_TIME = "time";
+    public static final String FIELD_DURATION_MS = "durationMs";
+    public static final String FIELD_EVENTS = "events";
+    public static final String FIELD_COUNT = "count";
+    public static final String FIELD_ERRORS = "errors";
+    public static final String FIELD_STATUS = "status";
+    public static final String FIELD_MEAN_MS = "meanMs";
+    public static final String FIELD_P50_MS = "p50Ms";
+    public static final String FIELD_P90_MS = "p90Ms";
+    public static final String FIELD_P99_MS = "p99Ms";
+    public static final String FIELD_MAX_MS = "maxMs";
+    public static final String FIELD_HISTOGRAM = "histogram";
+
+    private final DBCollection collection;
+    private final String driver;
+
+    private boolean enabled;
+    private int intervalSeconds;
+    private double sampleRate;
+
+    private final ConcurrentMap<String, Counts> counts = new ConcurrentHashMap<String, Counts>();
+    private ScheduledExecutorService executor;
+    private long intervalStart;
+
+    private final AtomicLong flushedDocuments = new AtomicLong();
+    private final AtomicLong failedFlushes = new AtomicLong();
+
+    /**
+     * The running totals of one event name, the interval values are the difference with the last flush
+     */
+    private static class Counts {
+        private final CallCounts calls = new CallCounts();
+
+        private long flushedCount;
+        private long flushedErrors;
+        private final Map<Integer, Long> flushedStatuses = new HashMap<Integer, Long>();
+        private Histogram recycled;
+    }
+
+    /**
+     * @param db         MongoDB
+     * @param testRunFqn the name of the test run, which names the collection of aggregates
+     */
+    public AggregatedResultRecorder(DB db, String testRunFqn) {
+        this.collection = db.getCollection(testRunFqn + ".aggregates");
+        this.driver = ManagementFactory.getRuntimeMXBean().getName();
+        this.enabled = false;
+        this.intervalSeconds = DEFAULT_INTERVAL_SECONDS;
+        this.sampleRate = 0.0;
+    }
+
+    /**
+     * Switch on aggregated recording (default: <tt>false</tt>), when off every call is recorded in full
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_INTERVAL_SECONDS default} time covered by each aggregate
+     */
+    public void setIntervalSeconds(int intervalSeconds) {
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    /**
+     * The share (0 to 1) of successful calls that are still recorded in full (default: 0)
+     */
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public synchronized void start() {
+        if (!enabled) {
+            return;
+        }
+        intervalStart = System.currentTimeMillis();
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AggregatedResultRecorder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable e) {
+                    logger.error("Failed to flush aggregated results.", e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        executor.awaitTermination(intervalSeconds * 10L, TimeUnit.SECONDS);
+        flush();
+        logger.info("Aggregated results: " + flushedDocuments.get() + " documents written, " +
+                failedFlushes.get() + " failed.");
+    }
+
+    /**
+     * Count a call
+     *
+     * @param eventName    the event the call was made for
+     * @param status       the HTTP status of the response, or 0 if there was none
+     * @param success      <tt>true</tt> if the call did what was expected
+     * @param responseTime the response time (millisec)
+     */
+    public void record(String eventName, int status, boolean success, long responseTime) {
+        if (!enabled) {
+            return;
+        }
+        getCounts(eventName).calls.record(status, success, responseTime);
+    }
+
+    /**
+     * @param success <tt>true</tt> if the call did what was expected
+     * @return <tt>true</tt> if the call should still get a full result record
+     */
+    public boolean isRecordedInFull(boolean success) {
+        return !enabled || !success || (sampleRate > 0.0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    private Counts getCounts(String eventName) {
+        Counts eventCounts = counts.get(eventName);
+        if (eventCounts == null) {
+            eventCounts = CallCounts.putIfAbsent(counts, eventName, new Counts());
+        }
+        return eventCounts;
+    }
+
+    /**
+     * Write the aggregates of the interval that just ended, as one document for all event names
+     */
+    private synchronized void flush() {
+        long now = System.currentTimeMillis();
+        BasicDBObjectBuilder events = BasicDBObjectBuilder.start();
+        boolean any = false;
+        for (Map.Entry<String, Counts> entry : counts.entrySet()) {
+            Counts eventCounts = entry.getValue();
+            Histogram interval = eventCounts.calls.getIntervalHistogram(eventCounts.recycled);
+            eventCounts.recycled = interval;
+            long count = eventCounts.calls.getCalls();
+            long errors = eventCounts.calls.getErrors();
+            long intervalCount = count - eventCounts.flushedCount;
+            if (intervalCount == 0L) {
+                continue;
+            }
+            BasicDBObjectBuilder statuses = BasicDBObjectBuilder.start();
+            for (Map.Entry<Integer, Long> status : eventCounts.calls.getStatusCounts().entrySet()) {
+                long statusCount = status.getValue();
+                Long flushed = eventCounts.flushedStatuses.get(status.getKey());
+                long intervalStatusCount = statusCount - (flushed == null ? 0L : flushed);
+                if (intervalStatusCount > 0L) {
+                    statuses.add(Integer.toString(status.getKey()), intervalStatusCount);
+                }
+                eventCounts.flushedStatuses.put(status.getKey(), statusCount);
+            }
+            ByteBuffer compressed = ByteBuffer.allocate(interval.getNeededByteBufferCapacity());
+            int length = interval.encodeIntoCompressedByteBuffer(compressed);
+
+            events.add(entry.getKey(), BasicDBObjectBuilder
+                    .start(FIELD_COUNT, intervalCount)
+                    .add(FIELD_ERRORS, errors - eventCounts.flushedErrors)
+                    .add(FIELD_STATUS, statuses.get())
+                    .add(FIELD_MEAN_MS, interval.getMean() / 1000.0)
+                    .add(FIELD_P50_MS, interval.getValueAtPercentile(50.0) / 1000.0)
+                    .add(FIELD_P90_MS, interval.getValueAtPercentile(90.0) / 1000.0)
+                    .add(FIELD_P99_MS, interval.getValueAtPercentile(99.0) / 1000.0)
+                    .add(FIELD_MAX_MS, interval.getMaxValue() / 1000.0)
+                    .add(FIELD_HISTOGRAM, Arrays.copyOf(compressed.array(), length))
+                    .get());
+            eventCounts.flushedCount = count;
+            eventCounts.flushedErrors = errors;
+            any = true;
+        }
+        long start = intervalStart;
+        intervalStart = now;
+        if (!any) {
+            return;
+        }
+
+        DBObject document = BasicDBObjectBuilder
+                .start(FIELD_DRIVER, driver)
+                .add(FIELD_TIME, new Date(start))
+                .add(FIELD_DURATION_MS, now - start)
+                .add(FIELD_EVENTS, events.get())
+                .get();
+        try {
+            collection.insert(document);
+            flushedDocuments.incrementAndGet();
+        } catch (MongoException e) {
+            failedFlushes.incrementAndGet();
+            logger.warn("Failed to write aggregated results: " + e.getMessage());
+        }
+    }
+}
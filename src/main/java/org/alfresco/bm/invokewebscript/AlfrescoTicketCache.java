@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.http.AuthenticationDetailsProvider;
+import org.alfresco.http.HttpClientProvider;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Caches an Alfresco login ticket per user, so Web Script calls can be authenticated with an <tt>alf_ticket</tt>
+ * rather than making the server check the credentials on every call.
+ * <p/>
+ * Tickets are fetched with the <tt>/api/login</tt> Web Script the first time a user needs one, and kept until they
+ * are older than the time-to-live or until they are {@link #invalidate(String, String) invalidated}, usually after a
+ * call was rejected with 401. The cache is bounded; once full, the least recently used ticket is dropped.
+ * <p/>
+ * The hit rate and the ticket fetch times are reported separately from the Web Script calls, in the log when the
+ * test stops and, with a {@link LatencyRecorder}, as the <tt>alfrescoTicket.fetch</tt> histogram.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class AlfrescoTicketCache {
+    private static Log logger = LogFactory.getLog(AlfrescoTicketCache.class);
+
+    public static final String LATENCY_NAME = "alfrescoTicket";
+    public static final String METRIC_FETCH = "fetch";
+
+    public static final String PARAM_TICKET = "alf_ticket";
+
+    /**
+     * Login Web Script Service URL
+     */
+    private static final String LOGIN_WS_URL = "/alfresco/service/api/login";
+
+    /**
+     * Logout Web Script Service URL, followed by the ticket
+     */
+    private static final String LOGOUT_WS_URL = "/alfresco/service/api/login/ticket/";
+
+    public static final long DEFAULT_TTL_MS = 30L * 60L * 1000L;
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private static class Ticket {
+        private final String ticket;
+        private final long fetched;
+
+        private Ticket(String ticket, long fetched) {
+            this.ticket = ticket;
+            this.fetched = fetched;
+        }
+    }
+
+    private final HttpClientProvider httpClientProvider;
+    private final AuthenticationDetailsProvider authenticationDetailsProvider;
+    private final String baseUrl;
+
+    private boolean enabled;
+    private long ttlMs;
+    private int maxSize;
+    private LatencyRecorder latencyRecorder;
+
+    /**
+     * The tickets by username, in access order
+     */
+    private Map<String, Ticket> tickets;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong invalidatedCount = new AtomicLong();
+    private final AtomicLong fetchCount = new AtomicLong();
+    private final AtomicLong fetchFailedCount = new AtomicLong();
+    private final AtomicLong fetchNanosTotal = new AtomicLong();
+    private final AtomicLong fetchNanosMax = new AtomicLong();
+
+    /**
+     * @param httpClientProvider            provides the HTTP client to log in with
+     * @param authenticationDetailsProvider provides the passwords of the users
+     * @param baseUrl                       the Alfresco URL
+     */
+    public AlfrescoTicketCache(
+            HttpClientProvider httpClientProvider,
+            AuthenticationDetailsProvider authenticationDetailsProvider,
+            String baseUrl) {
+        this.httpClientProvider = httpClientProvider;
+        this.authenticationDetailsProvider = authenticationDetailsProvider;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.enabled = false;
+        this.ttlMs = DEFAULT_TTL_MS;
+        this.maxSize = DEFAULT_MAX_SIZE;
+    }
+
+    /**
+     * Switch on ticket authentication (default: <tt>false</tt>)
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_TTL_MS default} time a ticket is used for before a new one is fetched
+     */
+    public void setTtlMs(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_SIZE default} number of tickets kept
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Record the ticket fetch times in a histogram
+     */
+    public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+        this.latencyRecorder = latencyRecorder;
+    }
+
+    public synchronized void start() {
+        final int capacity = maxSize;
+        tickets = new LinkedHashMap<String, Ticket>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Ticket> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized void stop() {
+        if (!enabled) {
+            return;
+        }
+        long hits = hitCount.get();
+        long misses = missCount.get();
+        long fetches = fetchCount.get();
+        logger.info(String.format(
+                "Alfresco tickets: %d hits, %d misses (hit rate %.1f%%), %d invalidated, %d fetches, %d failed, " +
+                        "fetch mean=%.1fms max=%.1fms",
+                hits, misses, (hits + misses) == 0L ? 0.0 : hits * 100.0 / (hits + misses),
+                invalidatedCount.get(), fetches, fetchFailedCount.get(),
+                fetches == 0L ? 0.0 : fetchNanosTotal.get() / (fetches * 1000000.0),
+                fetchNanosMax.get() / 1000000.0));
+    }
+
+    /**
+     * Get the ticket of a user, logging in if there is no valid ticket in the cache
+     *
+     * @return the ticket
+     * @throws IOException if the user could not log in
+     */
+    public String getTicket(String username) throws IOException {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Ticket ticket = tickets.get(username);
+            if (ticket != null && now - ticket.fetched < ttlMs) {
+                hitCount.incrementAndGet();
+                return ticket.ticket;
+            }
+        }
+        missCount.incrementAndGet();
+
+        // Log in without holding the lock, at worst two threads fetch a ticket for the same user
+        String ticket = fetchTicket(username);
+        synchronized (this) {
+            tickets.put(username, new Ticket(ticket, now));
+        }
+        return ticket;
+    }
+
+    /**
+     * Drop a ticket that was rejected, unless it was already replaced by another one
+     */
+    public synchronized void invalidate(String username, String ticket) {
+        Ticket cached = tickets.get(username);
+        if (cached != null && cached.ticket.equals(ticket)) {
+            tickets.remove(username);
+            invalidatedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Log a user in for a ticket of its own, which is not cached
+     *
+     * @return the ticket
+     * @throws IOException if the user could not log in
+     */
+    public String login(String username) throws IOException {
+        return fetchTicket(username);
+    }
+
+    /**
+     * Log out, which ends the ticket on the server
+     *
+     * @return the HTTP status of the logout
+     */
+    public int logout(String ticket) throws IOException {
+        URI logoutUri = withTicket(URI.create(baseUrl + LOGOUT_WS_URL + URLEncoder.encode(ticket, "UTF-8")), ticket);
+        HttpDelete logout = new HttpDelete(logoutUri);
+        try {
+            HttpResponse response = httpClientProvider.getHttpClient().execute(logout);
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        } catch (IOException e) {
+            logout.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the URI with the ticket added as the <tt>alf_ticket</tt> parameter
+     */
+    public static URI withTicket(URI uri, String ticket) throws UnsupportedEncodingException {
+        String url = uri.toString();
+        return URI.create(url + (url.indexOf('?') < 0 ? "?" : "&") +
+                PARAM_TICKET + "=" + URLEncoder.encode(ticket, "UTF-8"));
+    }
+
+    private String fetchTicket(String username) throws IOException {
+        DBObject credentials = BasicDBObjectBuilder
+                .start("username", username)
+                .add("password", authenticationDetailsProvider.getPasswordForUser(username))
+                .get();
+        HttpPost login = new HttpPost(baseUrl + LOGIN_WS_URL);
+        login.setEntity(new StringEntity(JSON.serialize(credentials), ContentType.APPLICATION_JSON));
+
+        long start = System.nanoTime();
+        try {
+            HttpResponse response = httpClientProvider.getHttpClient().execute(login);
+            String body = response.getEntity() == null ? null : EntityUtils.toString(response.getEntity());
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || body == null) {
+                throw new IOException("Login failed for user " + username + " with status " +
+                        response.getStatusLine().getStatusCode() + " " + response.getStatusLine().getReasonPhrase());
+            }
+            // The response looks like {"data": {"ticket": "TICKET_..."}}
+            DBObject data = (DBObject) ((DBObject) JSON.parse(body)).get("data");
+            Object ticket = data == null ? null : data.get("ticket");
+            if (ticket == null) {
+                throw new IOException("Login for user " + username + " returned no ticket: " + body);
+            }
+            recordFetch(System.nanoTime() - start);
+            return ticket.toString();
+        } catch (IOException e) {
+            fetchFailedCount.incrementAndGet();
+            login.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            fetchFailedCount.incrementAndGet();
+            login.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Count a ticket fetched, for a cache miss or a session login alike, and its time
+     */
+    private void recordFetch(long nanos) {
+        fetchCount.incrementAndGet();
+        fetchNanosTotal.addAndGet(nanos);
+        long max = fetchNanosMax.get();
+        while (nanos > max && !fetchNanosMax.compareAndSet(max, nanos)) {
+            max = fetchNanosMax.get();
+        }
+        if (latencyRecorder != null) {
+            latencyRecorder.recordNanos(LATENCY_NAME, METRIC_FETCH, nanos);
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    public long getFetchFailedCount() {
+        return fetchFailedCount.get();
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+/**
+ * Decides when Web Script invocations arrive, as gaps along a timeline that starts when scheduling starts.
+ * <p/>
+ * Gaps are fractional milliseconds so that high rates do not drift through rounding; the scheduler keeps the
+ * timeline position between batches and only rounds when it creates an event.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ * @see ArrivalModels
+ */
+public interface ArrivalModel {
+    /**
+     * @param elapsedMs the position on the timeline (millisec since the start) of the previous invocation
+     * @return the gap (millisec) between the previous invocation and the next one
+     */
+    double getNextGapMs(double elapsedMs);
+}
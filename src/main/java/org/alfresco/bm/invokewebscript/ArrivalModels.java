@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The {@link ArrivalModel arrival models} available to the Web Script invocation scheduler.
+ * <p/>
+ * <ul>
+ * <li><b>delay</b>: a fixed number of milliseconds between invocations</li>
+ * <li><b>rate</b>: a constant number of invocations per second</li>
+ * <li><b>ramp</b>: a rate going linearly from a start rate to an end rate over a duration, then holding</li>
+ * <li><b>steps</b>: a list of <tt>durationSeconds:rate</tt> steps, holding the last rate at the end</li>
+ * <li><b>spike</b>: a base rate with a spike to a higher rate at regular intervals</li>
+ * </ul>
+ * Any of the rate based models can have Poisson arrivals, i.e. exponentially distributed gaps with a mean
+ * matching the rate at that point of the timeline.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class ArrivalModels {
+    public static final String MODEL_DELAY = "delay";
+    public static final String MODEL_RATE = "rate";
+    public static final String MODEL_RAMP = "ramp";
+    public static final String MODEL_STEPS = "steps";
+    public static final String MODEL_SPIKE = "spike";
+
+    private ArrivalModels() {
+    }
+
+    /**
+     * Create an arrival model from the test properties
+     *
+     * @param model                the name of the model: delay, rate, ramp, steps or spike
+     * @param poisson              <tt>true</tt> to randomise the gaps of rate based models
+     * @param delayMs              the gap (millisec) used by the <b>delay</b> model
+     * @param rate                 the rate (per second) of the <b>rate</b> model and the start and base rates of the
+     *                             <b>ramp</b> and <b>spike</b> models
+     * @param rampEndRate          the rate (per second) the <b>ramp</b> model ends at
+     * @param rampDurationSeconds  how long the <b>ramp</b> model takes to get to the end rate
+     * @param steps                the <b>steps</b> as comma separated <tt>durationSeconds:rate</tt> pairs
+     * @param spikeRate            the rate (per second) during a spike of the <b>spike</b> model
+     * @param spikeIntervalSeconds the time between the start of each spike
+     * @param spikeDurationSeconds how long each spike lasts
+     */
+    public static ArrivalModel create(
+            String model, boolean poisson, long delayMs,
+            double rate, double rampEndRate, long rampDurationSeconds,
+            String steps,
+            double spikeRate, long spikeIntervalSeconds, long spikeDurationSeconds) {
+        RateModel rateModel;
+        if (MODEL_DELAY.equals(model)) {
+            return new DelayModel(delayMs);
+        } else if (MODEL_RATE.equals(model)) {
+            rateModel = new StepsModel(new double[]{Double.MAX_VALUE}, new double[]{rate});
+        } else if (MODEL_RAMP.equals(model)) {
+            rateModel = new RampModel(rate, rampEndRate, rampDurationSeconds * 1000.0);
+        } else if (MODEL_STEPS.equals(model)) {
+            rateModel = parseSteps(steps);
+        } else if (MODEL_SPIKE.equals(model)) {
+            rateModel = new SpikeModel(rate, spikeRate, spikeIntervalSeconds * 1000.0, spikeDurationSeconds * 1000.0);
+        } else {
+            throw new IllegalArgumentException("Unknown arrival model '" + model + "'.");
+        }
+        rateModel.setPoisson(poisson);
+        return rateModel;
+    }
+
+    /**
+     * @return a model with a fixed gap (millisec) between invocations
+     */
+    public static ArrivalModel delay(long delayMs) {
+        return new DelayModel(delayMs);
+    }
+
+    private static StepsModel parseSteps(String steps) {
+        String[] pairs = steps.trim().split("\\s*,\\s*");
+        double[] ends = new double[pairs.length];
+        double[] rates = new double[pairs.length];
+        double end = 0.0;
+        for (int i = 0; i < pairs.length; i++) {
+            String[] pair = pairs[i].split("\\s*:\\s*");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Arrival step '" + pairs[i] + "' is not 'durationSeconds:rate'.");
+            }
+            end += Double.parseDouble(pair[0]) * 1000.0;
+            ends[i] = end;
+            rates[i] = Double.parseDouble(pair[1]);
+        }
+        // Hold the last rate after the last step
+        ends[ends.length - 1] = Double.MAX_VALUE;
+        return new StepsModel(ends, rates);
+    }
+
+    private static void checkRate(double rate) {
+        if (rate <= 0.0) {
+            throw new IllegalArgumentException("Arrival rates must be greater than 0 but got " + rate + ".");
+        }
+    }
+
+    /**
+     * Fixed gap between invocations, as the scheduler has always done
+     */
+    private static class DelayModel implements ArrivalModel {
+        private final double delayMs;
+
+        private DelayModel(long delayMs) {
+            if (delayMs < 0) {
+                throw new IllegalArgumentException("Arrival delay must not be negative but got " + delayMs + ".");
+            }
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public double getNextGapMs(double elapsedMs) {
+            return delayMs;
+        }
+    }
+
+    /**
+     * Gaps derived from a rate (per second) that can change along the timeline
+     */
+    private abstract static class RateModel implements ArrivalModel {
+        private boolean poisson;
+
+        private void setPoisson(boolean poisson) {
+            this.poisson = poisson;
+        }
+
+        /**
+         * @return the rate (per second) at the given point of the timeline
+         */
+        protected abstract double getRate(double elapsedMs);
+
+        @Override
+        public double getNextGapMs(double elapsedMs) {
+            double meanGapMs = 1000.0 / getRate(elapsedMs);
+            if (poisson) {
+                // Exponentially distributed, 1 - U keeps us away from log(0)
+                return -Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * meanGapMs;
+            }
+            return meanGapMs;
+        }
+    }
+
+    private static class RampModel extends RateModel {
+        private final double startRate;
+        private final double endRate;
+        private final double durationMs;
+
+        private RampModel(double startRate, double endRate, double durationMs) {
+            checkRate(startRate);
+            checkRate(endRate);
+            this.startRate = startRate;
+            this.endRate = endRate;
+            this.durationMs = durationMs;
+        }
+
+        @Override
+        protected double getRate(double elapsedMs) {
+            if (elapsedMs >= durationMs) {
+                return endRate;
+            }
+            return startRate + (endRate - startRate) * (elapsedMs / durationMs);
+        }
+    }
+
+    private static class StepsModel extends RateModel {
+        /**
+         * The end (millisec) of each step along the timeline
+         */
+        private final double[] ends;
+        private final double[] rates;
+
+        private StepsModel(double[] ends, double[] rates) {
+            for (double rate : rates) {
+                checkRate(rate);
+            }
+            this.ends = ends;
+            this.rates = rates;
+        }
+
+        @Override
+        protected double getRate(double elapsedMs) {
+            for (int i = 0; i < ends.length; i++) {
+                if (elapsedMs < ends[i]) {
+                    return rates[i];
+                }
+            }
+            return rates[rates.length - 1];
+        }
+    }
+
+    private static class SpikeModel extends RateModel {
+        private final double baseRate;
+        private final double spikeRate;
+        private final double intervalMs;
+        private final double durationMs;
+
+        private SpikeModel(double baseRate, double spikeRate, double intervalMs, double durationMs) {
+            checkRate(baseRate);
+            checkRate(spikeRate);
+            if (intervalMs <= 0.0) {
+                throw new IllegalArgumentException("Arrival spike interval must be greater than 0.");
+            }
+            this.baseRate = baseRate;
+            this.spikeRate = spikeRate;
+            this.intervalMs = intervalMs;
+            this.durationMs = durationMs;
+        }
+
+        @Override
+        protected double getRate(double elapsedMs) {
+            // Each interval starts with the base rate and ends with the spike
+            double intoInterval = elapsedMs % intervalMs;
+            return intoInterval >= intervalMs - durationMs ? spikeRate : baseRate;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.http.AuthenticationDetailsProvider;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+
+/**
+ * Non-blocking HTTP engine for Web Script invocations.
+ * <p/>
+ * Requests are sent by an NIO based client with a handful of I/O threads, so thousands of calls can be in flight
+ * without a driver thread being blocked for each of them. Completions are handed to a small pool of completion
+ * threads, keeping MongoDB writes and result recording off the I/O threads. The number of calls in flight is
+ * bounded: once the limit is reached, {@link #execute(HttpRequestBase, String, Callback)} blocks the caller until
+ * a call completes. A call counts as in flight until its completion has been handled, so responses waiting for a
+ * completion thread are bounded too, however far behind MongoDB falls.
+ * <p/>
+ * Calls are authenticated with HTTP Basic, using the password from the {@link AuthenticationDetailsProvider},
+ * unless the request already carries its own authentication.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class AsyncWebScriptHttpEngine {
+    private static Log logger = LogFactory.getLog(AsyncWebScriptHttpEngine.class);
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2000;
+    public static final int DEFAULT_IO_THREADS = 2;
+    public static final int DEFAULT_COMPLETION_THREADS = 4;
+
+    /**
+     * Called when an asynchronous Web Script call is done
+     */
+    public interface Callback {
+        /**
+         * @param response   the response, with the body fully received
+         * @param callNanos  the time taken from sending the request to receiving the whole response
+         */
+        void completed(HttpResponse response, long callNanos);
+
+        /**
+         * @param e          why the call failed or <tt>null</tt> if it was cancelled
+         * @param callNanos  the time taken until the call failed
+         */
+        void failed(Exception e, long callNanos);
+    }
+
+    private final AuthenticationDetailsProvider authenticationDetailsProvider;
+    private final int maxConnections;
+    private final int connectionTimeoutMs;
+    private final int socketTimeoutMs;
+
+    private boolean enabled;
+    private int maxInFlight;
+    private int ioThreads;
+    private int completionThreads;
+
+    private CloseableHttpAsyncClient httpClient;
+    private ExecutorService completionExecutor;
+    private Semaphore inFlightPermits;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param authenticationDetailsProvider provides the passwords of the users making the calls
+     * @param maxConnections                the maximum number of open connections, in total and to the server
+     * @param connectionTimeoutMs           the time allowed for a connection to be made
+     * @param socketTimeoutMs               the time allowed between packets of a response
+     */
+    public AsyncWebScriptHttpEngine(
+            AuthenticationDetailsProvider authenticationDetailsProvider,
+            int maxConnections, int connectionTimeoutMs, int socketTimeoutMs) {
+        this.authenticationDetailsProvider = authenticationDetailsProvider;
+        this.maxConnections = maxConnections;
+        this.connectionTimeoutMs = connectionTimeoutMs;
+        this.socketTimeoutMs = socketTimeoutMs;
+        this.enabled = false;
+        this.maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        this.ioThreads = DEFAULT_IO_THREADS;
+        this.completionThreads = DEFAULT_COMPLETION_THREADS;
+    }
+
+    /**
+     * Switch on the engine (default: <tt>false</tt>), when off it is not started and calls stay blocking
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_IN_FLIGHT default} number of calls that can be in flight at once
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_IO_THREADS default} number of NIO reactor threads
+     */
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_COMPLETION_THREADS default} number of threads handling completed calls
+     */
+    public void setCompletionThreads(int completionThreads) {
+        this.completionThreads = completionThreads;
+    }
+
+    public synchronized void start() {
+        if (!enabled) {
+            return;
+        }
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .setConnectTimeout(connectionTimeoutMs)
+                .setSoTimeout(socketTimeoutMs)
+                .build();
+        httpClient = HttpAsyncClients.custom()
+                .setDefaultIOReactorConfig(ioReactorConfig)
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .build();
+        httpClient.start();
+
+        completionExecutor = Executors.newFixedThreadPool(completionThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AsyncWebScriptHttpEngine-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        inFlightPermits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Wait a little for the calls in flight to complete, then shut down
+     */
+    public synchronized void stop() throws Exception {
+        if (httpClient == null) {
+            return;
+        }
+        if (!inFlightPermits.tryAcquire(maxInFlight, socketTimeoutMs, TimeUnit.MILLISECONDS)) {
+            logger.warn("Stopping with " + inFlight.get() + " asynchronous Web Script calls still in flight.");
+        }
+        httpClient.close();
+        completionExecutor.shutdown();
+        completionExecutor.awaitTermination(socketTimeoutMs, TimeUnit.MILLISECONDS);
+        httpClient = null;
+
+        logger.info("Asynchronous Web Script calls: " + completedCount.get() + " completed, " +
+                failedCount.get() + " failed.");
+    }
+
+    /**
+     * Send a request authenticated as the given user without waiting for the response
+     *
+     * @param request  the request to send
+     * @param username the user to authenticate as, or <tt>null</tt> if the request is authenticated already
+     * @param callback called from a completion thread once the call is done
+     */
+    public void execute(HttpRequestBase request, String username, final Callback callback)
+            throws InterruptedException {
+        if (username != null) {
+            BasicAuthentication.authenticate(request, username, authenticationDetailsProvider);
+        }
+
+        // Hold back the caller when there are too many calls in flight already
+        inFlightPermits.acquire();
+        inFlight.incrementAndGet();
+        final long start = System.nanoTime();
+        try {
+            httpClient.execute(request, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(final HttpResponse response) {
+                    final long callNanos = System.nanoTime() - start;
+                    completedCount.incrementAndGet();
+                    complete(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.completed(response, callNanos);
+                        }
+                    });
+                }
+
+                @Override
+                public void failed(final Exception e) {
+                    fail(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    fail(null);
+                }
+
+                private void fail(final Exception e) {
+                    final long callNanos = System.nanoTime() - start;
+                    failedCount.incrementAndGet();
+                    complete(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.failed(e, callNanos);
+                        }
+                    });
+                }
+            });
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Handle a completed call on a completion thread, only then is it no longer in flight
+     */
+    private void complete(final Runnable completion) {
+        try {
+            completionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        completion.run();
+                    } finally {
+                        release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // Shut down already
+            release();
+            logger.warn("Dropped the completion of an asynchronous Web Script call: " + e.getMessage());
+        }
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        inFlightPermits.release();
+    }
+
+    /**
+     * @return the number of calls sent whose completion has not been handled yet
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.nio.charset.Charset;
+
+import org.alfresco.http.AuthenticationDetailsProvider;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Sets the HTTP Basic credentials the framework would, for the calls that cannot go through
+ * <tt>executeHttpMethodAsUser</tt>: those whose response is read as a stream to validate it, and those sent by the
+ * {@link AsyncWebScriptHttpEngine non-blocking engine}.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+final class BasicAuthentication {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BasicAuthentication() {
+    }
+
+    /**
+     * Authenticate a request as the given user, with the password from the provider
+     */
+    static void authenticate(HttpRequestBase request, String username,
+                             AuthenticationDetailsProvider authenticationDetailsProvider) {
+        String credentials = username + ":" + authenticationDetailsProvider.getPasswordForUser(username);
+        request.setHeader(HttpHeaders.AUTHORIZATION,
+                "Basic " + new String(Base64.encodeBase64(credentials.getBytes(UTF_8)), UTF_8));
+    }
+}
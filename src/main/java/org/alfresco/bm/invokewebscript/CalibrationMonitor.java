@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+/**
+ * Reports what the driver manages while it calibrates against the {@link StubWebScriptServer}.
+ * <p/>
+ * Every interval it logs the invocations per second answered by the stub, the share of invocations started late
+ * according to the {@link ScheduleLagMonitor}, the driver's live and peak thread counts and the MongoDB write rate
+ * (inserts, updates and deletes from the server's <tt>serverStatus</tt>). An interval is sustainable when no more
+ * than the allowed share of invocations was late; ramp the load up with the <tt>ramp</tt> arrival model and the
+ * highest sustainable rate is the ceiling of the driver, which is reported when the test stops.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class CalibrationMonitor {
+    private static Log logger = LogFactory.getLog(CalibrationMonitor.class);
+
+    public static final int DEFAULT_INTERVAL_SECONDS = 10;
+    public static final double DEFAULT_MAX_LATE_RATIO = 0.01;
+
+    private final StubWebScriptServer stubServer;
+    private final ScheduleLagMonitor scheduleLagMonitor;
+    private final DB db;
+
+    private int intervalSeconds;
+    private double maxLateRatio;
+
+    private ScheduledExecutorService executor;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private long lastTime;
+    private long lastServed;
+    private long lastStarted;
+    private long lastLate;
+    private long lastMongoWrites;
+    private boolean mongoWritesAvailable = true;
+
+    private double maxSustainableRate;
+    private double maxRate;
+    private int peakThreads;
+
+    /**
+     * @param stubServer         the stub server the driver calibrates against
+     * @param scheduleLagMonitor keeps track of how many invocations were late
+     * @param db                 MongoDB, to read the write rate from
+     */
+    public CalibrationMonitor(StubWebScriptServer stubServer, ScheduleLagMonitor scheduleLagMonitor, DB db) {
+        this.stubServer = stubServer;
+        this.scheduleLagMonitor = scheduleLagMonitor;
+        this.db = db;
+        this.intervalSeconds = DEFAULT_INTERVAL_SECONDS;
+        this.maxLateRatio = DEFAULT_MAX_LATE_RATIO;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_INTERVAL_SECONDS default} time between reports
+     */
+    public void setIntervalSeconds(int intervalSeconds) {
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_MAX_LATE_RATIO default} share of late invocations an interval can have and
+     * still count as sustainable
+     */
+    public void setMaxLateRatio(double maxLateRatio) {
+        this.maxLateRatio = maxLateRatio;
+    }
+
+    public synchronized void start() {
+        if (!stubServer.isEnabled()) {
+            return;
+        }
+        lastTime = System.nanoTime();
+        lastServed = stubServer.getServedCount();
+        lastStarted = scheduleLagMonitor.getCount();
+        lastLate = scheduleLagMonitor.getLateCount();
+        lastMongoWrites = getMongoWrites();
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CalibrationMonitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    report();
+                } catch (Throwable e) {
+                    logger.error("Failed to report calibration.", e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        executor.awaitTermination(intervalSeconds, TimeUnit.SECONDS);
+        synchronized (this) {
+            report();
+            logger.info(String.format(
+                    "Driver calibration: max sustainable rate %.1f invocations/sec (max reached %.1f/sec), " +
+                            "peak threads %d.",
+                    maxSustainableRate, maxRate, peakThreads));
+        }
+    }
+
+    /**
+     * @return the highest rate (invocations/sec) of an interval in which the driver kept up with the schedule
+     */
+    public synchronized double getMaxSustainableRate() {
+        return maxSustainableRate;
+    }
+
+    private synchronized void report() {
+        long now = System.nanoTime();
+        long served = stubServer.getServedCount();
+        long started = scheduleLagMonitor.getCount();
+        long late = scheduleLagMonitor.getLateCount();
+        long mongoWrites = getMongoWrites();
+        double seconds = (now - lastTime) / 1.0E9;
+        if (seconds <= 0.0) {
+            return;
+        }
+
+        double rate = (served - lastServed) / seconds;
+        long startedInInterval = started - lastStarted;
+        double lateRatio = startedInInterval == 0L ? 0.0 : (late - lastLate) / (double) startedInInterval;
+        double mongoWriteRate = mongoWritesAvailable ? (mongoWrites - lastMongoWrites) / seconds : -1.0;
+        int threads = threadMXBean.getThreadCount();
+        peakThreads = Math.max(peakThreads, threadMXBean.getPeakThreadCount());
+
+        maxRate = Math.max(maxRate, rate);
+        boolean sustainable = startedInInterval > 0L && lateRatio <= maxLateRatio;
+        if (sustainable) {
+            maxSustainableRate = Math.max(maxSustainableRate, rate);
+        }
+        logger.info(String.format(
+                "Calibration: %.1f invocations/sec, %.1f%% late%s, %d threads, %s MongoDB writes/sec",
+                rate, lateRatio * 100.0, sustainable ? "" : " (not sustainable)", threads,
+                mongoWriteRate < 0.0 ? "unknown" : String.format("%.1f", mongoWriteRate)));
+
+        lastTime = now;
+        lastServed = served;
+        lastStarted = started;
+        lastLate = late;
+        lastMongoWrites = mongoWrites;
+    }
+
+    /**
+     * @return the number of writes the MongoDB server has done since it started
+     */
+    private long getMongoWrites() {
+        if (!mongoWritesAvailable) {
+            return 0L;
+        }
+        try {
+            CommandResult status = db.command("serverStatus");
+            status.throwOnError();
+            DBObject opcounters = (DBObject) status.get("opcounters");
+            return ((Number) opcounters.get("insert")).longValue() +
+                    ((Number) opcounters.get("update")).longValue() +
+                    ((Number) opcounters.get("delete")).longValue();
+        } catch (RuntimeException e) {
+            logger.warn("MongoDB write rate is not available: " + e.getMessage());
+            mongoWritesAvailable = false;
+            return 0L;
+        }
+    }
+}
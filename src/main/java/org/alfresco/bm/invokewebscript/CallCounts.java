@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * The running totals of the calls made under one name: the calls, the errors, the calls by HTTP status and an
+ * HdrHistogram recorder of their latencies. Writers never lock or wait; readers take the totals and the interval
+ * histograms whenever they report.
+ * <p/>
+ * Also holds the histogram settings and helpers that all latency histograms of the driver share, see
+ * {@link LatencyRecorder}, {@link AggregatedResultRecorder} and {@link LiveMetrics}.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+final class CallCounts {
+    /**
+     * One hour in microseconds, anything longer is clamped
+     */
+    static final long HIGHEST_TRACKABLE_VALUE_US = 3600L * 1000L * 1000L;
+    static final int SIGNIFICANT_DIGITS = 2;
+
+    /**
+     * A counter striped over cells a cache line apart, picked by thread, in place of a single contended counter
+     */
+    static final class StripedCounter {
+        /**
+         * Longs per cell, so two cells never share a 64 byte cache line
+         */
+        private static final int SPACING = 8;
+        private static final int STRIPES;
+
+        static {
+            int stripes = 1;
+            while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+                stripes <<= 1;
+            }
+            STRIPES = stripes;
+        }
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * SPACING);
+
+        void add(long delta) {
+            int cell = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+            cells.getAndAdd(cell * SPACING, delta);
+        }
+
+        void increment() {
+            add(1L);
+        }
+
+        long sum() {
+            long sum = 0L;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * SPACING);
+            }
+            return sum;
+        }
+    }
+
+    private final StripedCounter calls = new StripedCounter();
+    private final StripedCounter errors = new StripedCounter();
+    private final ConcurrentMap<Integer, StripedCounter> statuses = new ConcurrentHashMap<Integer, StripedCounter>();
+    private final Recorder latency = new Recorder(HIGHEST_TRACKABLE_VALUE_US, SIGNIFICANT_DIGITS);
+
+    /**
+     * Count a call
+     *
+     * @param status  the HTTP status of the response, or 0 if there was none
+     * @param success <tt>true</tt> if the call did what was expected
+     * @param millis  the latency of the call (millisec)
+     */
+    void record(int status, boolean success, long millis) {
+        calls.increment();
+        if (!success) {
+            errors.increment();
+        }
+        StripedCounter statusCount = statuses.get(status);
+        if (statusCount == null) {
+            statusCount = putIfAbsent(statuses, status, new StripedCounter());
+        }
+        statusCount.increment();
+        recordMicros(latency, millis * 1000L);
+    }
+
+    long getCalls() {
+        return calls.sum();
+    }
+
+    long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the calls so far by HTTP status
+     */
+    Map<Integer, Long> getStatusCounts() {
+        Map<Integer, Long> counts = new HashMap<Integer, Long>(statuses.size() * 2);
+        for (Map.Entry<Integer, StripedCounter> status : statuses.entrySet()) {
+            counts.put(status.getKey(), status.getValue().sum());
+        }
+        return counts;
+    }
+
+    /**
+     * @param recycled a histogram returned by an earlier call to reuse, or <tt>null</tt>
+     * @return the latencies recorded since the last call
+     */
+    Histogram getIntervalHistogram(Histogram recycled) {
+        return latency.getIntervalHistogram(recycled);
+    }
+
+    /**
+     * Record a latency, clamped to what the histograms can track
+     */
+    static void recordMicros(Recorder recorder, long micros) {
+        recorder.recordValue(Math.min(Math.max(micros, 0L), HIGHEST_TRACKABLE_VALUE_US));
+    }
+
+    /**
+     * Put a value unless another thread got there first
+     *
+     * @return the value now in the map
+     */
+    static <K, V> V putIfAbsent(ConcurrentMap<K, V> map, K key, V value) {
+        V existing = map.putIfAbsent(key, value);
+        return existing == null ? value : existing;
+    }
+}
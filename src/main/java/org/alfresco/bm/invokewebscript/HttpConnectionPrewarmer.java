@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.http.HttpClientProvider;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Opens connections to Alfresco up to the size of the shared HTTP connection pool when a driver starts, so the
+ * first Web Script calls of a run do not pay for the connect and the TLS handshake.
+ * <p/>
+ * The connections are opened in the background by as many concurrent calls to the Alfresco URL as there are
+ * connections to open; all calls wait for each other before they go, so each one needs a connection of its own, and
+ * the connections go back to the pool when the responses have been read. Whatever the response, the connection is
+ * open; failed calls are only logged.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class HttpConnectionPrewarmer {
+    private static Log logger = LogFactory.getLog(HttpConnectionPrewarmer.class);
+
+    private final HttpClientProvider httpClientProvider;
+    private final String baseUrl;
+
+    private boolean enabled;
+    private int connections;
+
+    private ExecutorService executor;
+
+    /**
+     * @param httpClientProvider the provider of the shared HTTP client whose pool is filled
+     * @param baseUrl            the Alfresco URL
+     */
+    public HttpConnectionPrewarmer(HttpClientProvider httpClientProvider, String baseUrl) {
+        this.httpClientProvider = httpClientProvider;
+        this.baseUrl = baseUrl;
+        this.enabled = false;
+        this.connections = 0;
+    }
+
+    /**
+     * Switch on pre-opening connections (default: <tt>false</tt>)
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * The number of connections to open, usually the size of the pool
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public synchronized void start() {
+        if (!enabled || connections <= 0) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final CountDownLatch ready = new CountDownLatch(connections);
+        final CountDownLatch done = new CountDownLatch(connections);
+        final AtomicInteger opened = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "HttpConnectionPrewarmer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < connections; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ready.countDown();
+                        ready.await(30L, TimeUnit.SECONDS);
+                        HttpGet get = new HttpGet(baseUrl);
+                        HttpResponse response = httpClientProvider.getHttpClient().execute(get);
+                        EntityUtils.consume(response.getEntity());
+                        opened.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Failed to open a connection to " + baseUrl + ": " + e.getMessage());
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    done.await();
+                    logger.info("Opened " + opened.get() + " of " + connections + " HTTP connections to " + baseUrl +
+                            " in " + (System.currentTimeMillis() - start) + " ms.");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        executor.shutdown();
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
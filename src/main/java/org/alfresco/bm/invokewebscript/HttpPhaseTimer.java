@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Splits a blocking HTTP call into phases, using request and response interceptors on the shared HTTP client:
+ * <ul>
+ * <li><b>leaseWait</b> or <b>connect</b>: from the start of the call until the request is about to be sent on a
+ * connection. This is the wait for a pooled connection when the connection was reused, or the wait plus
+ * opening a new connection when it was not.</li>
+ * <li><b>ttfb</b>: from sending the request until the response headers arrived</li>
+ * <li><b>bodyRead</b>: from the response headers until the call returned with the body consumed</li>
+ * </ul>
+ * The calls are blocking, so the timestamps are kept per thread, and only taken between {@link #start()} and
+ * {@link #stop()}, so other calls made by the thread, such as logins, are not mixed in. If the interceptors could
+ * not be installed, or did not fire, the whole call is reported as time-to-first-byte. There is one timer per HTTP
+ * client, see {@link #getInstance(HttpClient)}, so the interceptors are only added once however many processors
+ * use it.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class HttpPhaseTimer implements HttpRequestInterceptor, HttpResponseInterceptor {
+    /**
+     * The timers installed on each HTTP client
+     */
+    private static final Map<HttpClient, HttpPhaseTimer> INSTALLED = new WeakHashMap<HttpClient, HttpPhaseTimer>();
+
+    private final ThreadLocal<Phases> phases = new ThreadLocal<Phases>() {
+        @Override
+        protected Phases initialValue() {
+            return new Phases();
+        }
+    };
+
+    /**
+     * Get the timer of an HTTP client, installing it on the client the first time
+     */
+    public static HttpPhaseTimer getInstance(HttpClient httpClient) {
+        synchronized (INSTALLED) {
+            HttpPhaseTimer timer = INSTALLED.get(httpClient);
+            if (timer == null) {
+                timer = new HttpPhaseTimer();
+                timer.install(httpClient);
+                INSTALLED.put(httpClient, timer);
+            }
+            return timer;
+        }
+    }
+
+    /**
+     * Add the interceptors to the HTTP client
+     *
+     * @return <tt>true</tt> if the client supports interceptors and they were added
+     */
+    public boolean install(HttpClient httpClient) {
+        if (httpClient instanceof AbstractHttpClient) {
+            ((AbstractHttpClient) httpClient).addRequestInterceptor(this);
+            ((AbstractHttpClient) httpClient).addResponseInterceptor(this);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark the start of a call made by the current thread
+     */
+    public void start() {
+        Phases current = phases.get();
+        current.start = System.nanoTime();
+        current.sent = 0L;
+        current.firstByte = 0L;
+        current.end = 0L;
+        current.newConnection = false;
+        current.timing = true;
+    }
+
+    /**
+     * Mark the end of the call made by the current thread, also when it failed
+     *
+     * @return the phases of the call, only valid until the next call made by the thread
+     */
+    public Phases stop() {
+        Phases current = phases.get();
+        current.end = System.nanoTime();
+        current.timing = false;
+        return current;
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) throws HttpException {
+        Phases current = phases.get();
+        if (!current.timing) {
+            return;
+        }
+        current.sent = System.nanoTime();
+        HttpConnection connection = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        current.newConnection = connection != null && connection.getMetrics().getRequestCount() == 0;
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) throws HttpException {
+        Phases current = phases.get();
+        if (current.timing) {
+            current.firstByte = System.nanoTime();
+        }
+    }
+
+    /**
+     * Timestamps (nanoseconds) of the phases of one call
+     */
+    public static class Phases {
+        private long start;
+        private long sent;
+        private long firstByte;
+        private long end;
+        private boolean newConnection;
+        private boolean timing;
+
+        /**
+         * @return <tt>true</tt> if the interceptors fired and the call can be split into phases
+         */
+        public boolean isSplit() {
+            return sent >= start && firstByte >= sent && sent > 0L;
+        }
+
+        /**
+         * @return <tt>true</tt> if a new connection had to be opened for the call
+         */
+        public boolean isNewConnection() {
+            return newConnection;
+        }
+
+        /**
+         * @return the time taken to get a connection, pooled or new
+         */
+        public long getConnectionNanos() {
+            return isSplit() ? sent - start : 0L;
+        }
+
+        public long getTimeToFirstByteNanos() {
+            return isSplit() ? firstByte - sent : end - start;
+        }
+
+        public long getBodyReadNanos() {
+            return isSplit() ? end - firstByte : 0L;
+        }
+
+        public long getTotalNanos() {
+            return end - start;
+        }
+    }
+}
@@ -18,14 +18,16 @@
  */
 package org.alfresco.bm.invokewebscript;
 
-import java.net.URLEncoder;
+import java.net.URI;
 import java.util.Collections;
 
 import org.alfresco.bm.data.DataCreationState;
 import org.alfresco.bm.data.WebScriptInvocationData;
 import org.alfresco.bm.data.WebScriptInvocationDataDAO;
+import org.alfresco.bm.data.WebScriptInvocationStateUpdater;
 import org.alfresco.bm.event.Event;
 import org.alfresco.bm.event.EventResult;
+import org.alfresco.bm.event.EventService;
 import org.alfresco.bm.http.AuthenticatedHttpEventProcessor;
 
 import org.alfresco.bm.user.UserData;
@@ -33,18 +35,25 @@ import org.alfresco.bm.user.UserDataService;
 import org.alfresco.http.AuthenticationDetailsProvider;
 import org.alfresco.http.HttpClientProvider;
 import org.alfresco.http.SimpleHttpRequestCallback;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
-import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.util.EntityUtils;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
 
 /**
  * Invoke a Web Script (WS) with a Message.
  * <p/>
  * <h1>Input</h1>
  * <p/>
- * A {@link WebScriptInvocationData data object } containing the message to be sent as parameter to Web Script, and
- * the username to use when authenticating.
+ * The key of a {@link WebScriptInvocationData data object } containing the message to be sent as parameter to
+ * Web Script, and the username to use when authenticating. Alternatively the whole data object, as stored in
+ * MongoDB, can be passed in as the event data.
  * <p/>
  * <h1>Data</h1>
  * <p/>
@@ -52,23 +61,77 @@ import org.apache.http.client.methods.HttpGet;
  * <p/>
  * <h1>Actions</h1>
  * <p/>
- * Fetches the Web Script Invocation data from the MongoDB collection and invokes the Hello World Web Script with it.
+ * Fetches the Web Script Invocation data from the MongoDB collection, unless it came with the event,
+ * and calls the {@link WebScriptOperation Web Script operation} of the invocation with it. Without a
+ * {@link WebScriptWorkload workload} this is the Hello World Web Script.
  * After that the invocation is marked as done and the result is recorded.
  * <p/>
+ * Besides the service time of the call itself, each result records the response time measured from when the
+ * invocation was scheduled to happen, and the schedule lag in between. When the driver falls behind schedule the
+ * response time still includes the time spent waiting, which the service time alone would leave out.
+ * With a {@link LatencyRecorder} these are also recorded in histograms, together with a breakdown of the call into
+ * connection, time-to-first-byte and body read phases.
+ * <p/>
+ * With an enabled {@link AsyncWebScriptHttpEngine} the call is not made on the driver thread: it is handed to the
+ * non-blocking engine and the event completes as soon as the call is dispatched. The invocation state and the
+ * latencies are then recorded when the call completes, which also sends a
+ * {@link WebScriptInvocationCompletedEventProcessor#EVENT_NAME_WEB_SCRIPT_INVOCATION_COMPLETED} event carrying the
+ * result of the call, so it is recorded, and charted, as a result of its own, failed if the call failed.
+ * <p/>
+ * With an enabled {@link AlfrescoTicketCache} calls are authenticated with the user's cached <tt>alf_ticket</tt>
+ * instead of with credentials. The ticket is fetched before the clock starts, so the call is timed without the
+ * authentication; a call rejected with 401 is made once more with a new ticket.
+ * <p/>
+ * With an enabled {@link AggregatedResultRecorder} every call is counted in per-interval aggregates, and only failed
+ * and sampled successful calls get result data; the others are completed with an empty result.
+ * <p/>
+ * With an enabled {@link WebScriptSession} an invocation that carries a session step is made as that step of a user
+ * session: the first step logs in, each step passes the session on to the next after the think time, and the last
+ * one logs out. Each step is recorded under the event name and the name of its operation; the last step also
+ * records the whole session. The calls of a session are made synchronously, whatever the asynchronous engine.
+ * <p/>
+ * With an enabled {@link ResponseValidator} the body of each synchronous call is read as a stream while the call is
+ * timed and checked for content and size besides the status; the bytes received and the body read time are added to
+ * the result data.
+ * <p/>
+ * With {@link #setRecordState(boolean) state recording} off, as for warm-up invocations, the invocation is only
+ * taken from the event and nothing is written to the mirror.
+ * <p/>
  * <h1>Output</h1>
  * <p/>
- * {@link #EVENT_NAME_WEB_SCRIPT_INVOCATION_DONE}: The Web Script Invocation name<br/>
+ * {@link #EVENT_NAME_WEB_SCRIPT_INVOCATION_DONE}: The Web Script Invocation key<br/>
  *
  * @author martin.bergljung@alfresco.com
  * @since 2.0
  */
 public class InvokeWebScriptEventProcessor extends AuthenticatedHttpEventProcessor {
+    private static Log logger = LogFactory.getLog(InvokeWebScriptEventProcessor.class);
+
     public static final String EVENT_NAME_WEB_SCRIPT_INVOCATION_DONE = "webScriptInvocationDone";
 
     /**
-     * Hello World Web Script Service URL
+     * Fields of the result data
+     */
+    public static final String RESULT_FIELD_MSG = "msg";
+    public static final String RESULT_FIELD_SERVICE_TIME = "serviceTime";
+    public static final String RESULT_FIELD_RESPONSE_TIME = "responseTime";
+    public static final String RESULT_FIELD_SCHEDULE_LAG = "scheduleLag";
+    public static final String RESULT_FIELD_OPERATION = "operation";
+    public static final String RESULT_FIELD_BYTES = "bytes";
+    public static final String RESULT_FIELD_BODY_READ_TIME = "bodyReadTime";
+    public static final String RESULT_FIELD_SESSION_STEP = "sessionStep";
+    public static final String RESULT_FIELD_SESSION_TIME = "sessionTime";
+    public static final String RESULT_FIELD_SESSION_SERVICE_TIME = "sessionServiceTime";
+
+    /**
+     * The provider of the shared HTTP client, which the phase timer is installed on
+     */
+    private final HttpClientProvider httpClientProvider;
+
+    /**
+     * Provides the passwords when calls with a validated response are authenticated here
      */
-    private static final String HELLO_WORLD_WS_URL = "/alfresco/service/sample/helloworld?message=";
+    private final AuthenticationDetailsProvider authenticationDetailsProvider;
 
     /**
      * User data service to get hold of usernames to use for Web Script invocations.
@@ -87,6 +150,72 @@ public class InvokeWebScriptEventProcessor extends AuthenticatedHttpEventProcess
      */
     private String eventNameWebScriptInvocationDone;
 
+    /**
+     * Name of the event carrying the result of a call made by the non-blocking engine
+     */
+    private String eventNameWebScriptInvocationCompleted;
+
+    /**
+     * Queue for the results of calls made by the non-blocking engine, which complete after their event
+     */
+    private EventService eventService;
+
+    /**
+     * Optional write-behind updater for the invocation state, when not available the state is written straight away
+     */
+    private WebScriptInvocationStateUpdater stateUpdater;
+
+    /**
+     * Optional monitor of the schedule lag over the whole test run
+     */
+    private ScheduleLagMonitor scheduleLagMonitor;
+
+    /**
+     * Optional histograms of the latencies, with the phases of each call timed by {@link #phaseTimer}
+     */
+    private LatencyRecorder latencyRecorder;
+    private HttpPhaseTimer phaseTimer;
+
+    /**
+     * Optional non-blocking engine to make the calls with
+     */
+    private AsyncWebScriptHttpEngine asyncHttpEngine;
+
+    /**
+     * The Web Script operations the invocations can call
+     */
+    private WebScriptWorkload workload;
+
+    /**
+     * Optional cache of login tickets to authenticate with instead of credentials
+     */
+    private AlfrescoTicketCache ticketCache;
+
+    /**
+     * Optional per-interval aggregates, when enabled successful calls only get a full result when sampled
+     */
+    private AggregatedResultRecorder aggregatedResultRecorder;
+
+    /**
+     * Record the state of each invocation in the mirror, off for invocations that are not stored there
+     */
+    private boolean recordState;
+
+    /**
+     * Optional steps of user sessions, for invocations that are made as sessions
+     */
+    private WebScriptSession session;
+
+    /**
+     * Optional checks of the response body, read as a stream while the call is timed
+     */
+    private ResponseValidator responseValidator;
+
+    /**
+     * Optional live metrics of the running test, counted as each call starts and completes
+     */
+    private LiveMetrics liveMetrics;
+
     /**
      * @param httpClientProvider
      * @param authenticationDetailsProvider
@@ -101,9 +230,114 @@ public class InvokeWebScriptEventProcessor extends AuthenticatedHttpEventProcess
             WebScriptInvocationDataDAO webScriptInvocationDataDAO,
             UserDataService userDataService) {
         super(httpClientProvider, authenticationDetailsProvider, baseUrl);
+        this.httpClientProvider = httpClientProvider;
+        this.authenticationDetailsProvider = authenticationDetailsProvider;
         this.userDataService = userDataService;
         this.webScriptInvocationDataDAO = webScriptInvocationDataDAO;
         this.eventNameWebScriptInvocationDone = EVENT_NAME_WEB_SCRIPT_INVOCATION_DONE;
+        this.eventNameWebScriptInvocationCompleted =
+                WebScriptInvocationCompletedEventProcessor.EVENT_NAME_WEB_SCRIPT_INVOCATION_COMPLETED;
+        this.workload = WebScriptWorkload.helloWorld();
+        this.recordState = true;
+    }
+
+    /**
+     * Queue invocation state transitions with a write-behind updater rather than writing them synchronously
+     */
+    public void setStateUpdater(WebScriptInvocationStateUpdater stateUpdater) {
+        this.stateUpdater = stateUpdater;
+    }
+
+    /**
+     * Record the schedule lag of every invocation for the test run
+     */
+    public void setScheduleLagMonitor(ScheduleLagMonitor scheduleLagMonitor) {
+        this.scheduleLagMonitor = scheduleLagMonitor;
+    }
+
+    /**
+     * Record latencies, and the phases of each call, in histograms, if the recorder is enabled
+     */
+    public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+        if (latencyRecorder == null || !latencyRecorder.isEnabled()) {
+            this.latencyRecorder = null;
+            this.phaseTimer = null;
+            return;
+        }
+        this.latencyRecorder = latencyRecorder;
+        this.phaseTimer = HttpPhaseTimer.getInstance(httpClientProvider.getHttpClient());
+    }
+
+    /**
+     * Make the Web Script calls with a non-blocking engine, if it is enabled
+     */
+    public void setAsyncHttpEngine(AsyncWebScriptHttpEngine asyncHttpEngine) {
+        this.asyncHttpEngine = asyncHttpEngine;
+    }
+
+    /**
+     * The event service the results of calls made by the non-blocking engine are sent through
+     */
+    public void setEventService(EventService eventService) {
+        this.eventService = eventService;
+    }
+
+    /**
+     * Override the name of the event carrying the result of a call made by the non-blocking engine
+     * (default: <tt>invokeWebScriptCompleted</tt>)
+     */
+    public void setEventNameWebScriptInvocationCompleted(String eventNameWebScriptInvocationCompleted) {
+        this.eventNameWebScriptInvocationCompleted = eventNameWebScriptInvocationCompleted;
+    }
+
+    /**
+     * Override the Hello World Web Script with a mix of Web Script operations
+     */
+    public void setWorkload(WebScriptWorkload workload) {
+        this.workload = workload;
+    }
+
+    /**
+     * Authenticate with cached login tickets, if the cache is enabled
+     */
+    public void setTicketCache(AlfrescoTicketCache ticketCache) {
+        this.ticketCache = ticketCache;
+    }
+
+    /**
+     * Count calls in per-interval aggregates, if enabled, and only keep full results of failures and samples
+     */
+    public void setAggregatedResultRecorder(AggregatedResultRecorder aggregatedResultRecorder) {
+        this.aggregatedResultRecorder = aggregatedResultRecorder;
+    }
+
+    /**
+     * Switch off state updates for invocations that only come as event data, such as warm-up ones
+     * (default: <tt>true</tt>)
+     */
+    public void setRecordState(boolean recordState) {
+        this.recordState = recordState;
+    }
+
+    /**
+     * Make invocations that carry a session step as steps of that session, if sessions are enabled
+     */
+    public void setSession(WebScriptSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Check the content and size of each response as its body is read, if the validator is enabled
+     */
+    public void setResponseValidator(ResponseValidator responseValidator) {
+        this.responseValidator = responseValidator;
+    }
+
+    /**
+     * Count every call in the live metrics of the test, if they are enabled
+     */
+    public void setLiveMetrics(LiveMetrics liveMetrics) {
+        this.liveMetrics = liveMetrics;
     }
 
     @Override
@@ -111,12 +345,20 @@ public class InvokeWebScriptEventProcessor extends AuthenticatedHttpEventProcess
         // Usually, the entire method is timed but we can choose to control this
         super.suspendTimer();
 
-        // Get the Web Script Invocation name
-        String webScriptInvocationName = (String) event.getData();
+        // Get the Web Script Invocation data, either straight from the event or by looking it up by key
+        Object eventData = event.getData();
+        long webScriptInvocationKey;
+        WebScriptInvocationData webScriptInvocationData;
+        if (eventData instanceof DBObject) {
+            webScriptInvocationData = WebScriptInvocationDataDAO.fromDBObject((DBObject) eventData);
+            webScriptInvocationKey = webScriptInvocationData.getKey();
+        } else {
+            webScriptInvocationKey = ((Number) eventData).longValue();
+            webScriptInvocationData = webScriptInvocationDataDAO.findWebScriptInvocationByKey(webScriptInvocationKey);
+        }
+        String webScriptInvocationName = WebScriptInvocationData.getName(webScriptInvocationKey);
 
-        // Locate the Web Script Invocation data and make a quick check on it
-        WebScriptInvocationData webScriptInvocationData =
-                webScriptInvocationDataDAO.findWebScriptInvocationByName(webScriptInvocationName);
+        // Make a quick check on the Web Script Invocation data
         EventResult result = null;
         if (webScriptInvocationData == null) {
             result = new EventResult(
@@ -140,6 +382,23 @@ public class InvokeWebScriptEventProcessor extends AuthenticatedHttpEventProcess
             return result;
         }
 
+        // Sessions make their calls one step at a time, with what the previous step passed on
+        if (session != null && session.isEnabled() && eventData instanceof DBObject &&
+                ((DBObject) eventData).containsField(WebScriptSession.FIELD_STEP)) {
+            return processSessionStep(event, (DBObject) eventData, webScriptInvocationData, webScriptInvocationKey);
+        }
+
+        // Find out which Web Script to call, when there is a mix the latencies are recorded per operation
+        WebScriptOperation operation = workload.getOperation(webScriptInvocationData.getOperation());
+        if (operation == null) {
+            result = new EventResult(
+                    "Skipping processing for '" + webScriptInvocationName + "'.  Unknown Web Script operation '" +
+                            webScriptInvocationData.getOperation() + "'.",
+                    false);
+            return result;
+        }
+        String latencyName = workload.isMix() ? event.getName() + "." + operation.getName() : event.getName();
+
         EventResult eventResult = null;
 
         // Look up the user data for the username that will be used to authenticate and invoke the Web Script
@@ -151,33 +410,126 @@ public class InvokeWebScriptEventProcessor extends AuthenticatedHttpEventProcess
             return eventResult;
         }
 
-        // Start the clock that times the Web Script call
-        resumeTimer();
+        // Work out how far behind schedule we are, the invocation knows when it should have happened.
+        // Fall back on the event time if it does not.
+        long intendedTime = webScriptInvocationData.getScheduled() > 0L ?
+                webScriptInvocationData.getScheduled() : event.getScheduledTime();
+        long scheduleLag = Math.max(0L, System.currentTimeMillis() - intendedTime);
+        if (scheduleLagMonitor != null) {
+            scheduleLagMonitor.record(scheduleLag);
+        }
 
-        // Make the Web Script call authenticated as username
-        // WebScript Call will have a URL looking something like:
+        // Make the Web Script request, with a URL looking something like:
         //    http://localhost:8080/alfresco/service/sample/helloworld?message=Message%200000003
-        HttpGet webScriptInvocationGet = new HttpGet(
-                getFullUrlForPath(HELLO_WORLD_WS_URL +
-                        URLEncoder.encode(webScriptInvocationData.getMessage(), "UTF-8")));
-        HttpResponse httpResponse =
-                executeHttpMethodAsUser(webScriptInvocationGet, webScriptInvocationData.getUsername(),
-                SimpleHttpRequestCallback.getInstance());
-        StatusLine httpStatus = httpResponse.getStatusLine();
+        String username = webScriptInvocationData.getUsername();
+        URI webScriptUri = URI.create(getFullUrlForPath(operation.getPath(webScriptInvocationData)));
+        HttpRequestBase webScriptRequest = operation.createRequest(webScriptUri.toString(), webScriptInvocationData);
 
-        // Stop the clock, we are done with the Web Script call
-        suspendTimer();
+        // Get the login ticket, if we use them, before any call is timed
+        String ticket = null;
+        if (ticketCache != null && ticketCache.isEnabled()) {
+            ticket = ticketCache.getTicket(username);
+        }
 
-        // Check if the Alfresco server responded with OK
-        if (httpStatus.getStatusCode() == HttpStatus.SC_OK) {
+        // Hand the call to the non-blocking engine, the outcome is recorded when it completes
+        if (asyncHttpEngine != null && asyncHttpEngine.isEnabled()) {
+            if (ticket != null) {
+                webScriptRequest.setURI(AlfrescoTicketCache.withTicket(webScriptUri, ticket));
+            }
+            return dispatchWebScriptInvocation(event.getName(), latencyName, webScriptInvocationKey, operation,
+                    webScriptRequest, username, ticket, scheduleLag);
+        }
+
+        HttpResponse httpResponse;
+        ResponseValidator.Validation validation = null;
+        boolean validating = responseValidator != null && responseValidator.isEnabled();
+        long callStart = System.nanoTime();
+        boolean retried = false;
+        HttpPhaseTimer.Phases phases = null;
+        if (liveMetrics != null) {
+            liveMetrics.callStarted(event.getName());
+        }
+        try {
+            while (true) {
+                // Start the clock that times the Web Script call
+                resumeTimer();
+                callStart = System.nanoTime();
+                if (phaseTimer != null) {
+                    phaseTimer.start();
+                }
+
+                // Make the Web Script call authenticated as username, reading the body here when it is validated
+                if (ticket == null && !validating) {
+                    httpResponse = executeHttpMethodAsUser(webScriptRequest, username,
+                            SimpleHttpRequestCallback.getInstance());
+                } else {
+                    if (ticket == null) {
+                        BasicAuthentication.authenticate(webScriptRequest, username, authenticationDetailsProvider);
+                    } else {
+                        webScriptRequest.setURI(AlfrescoTicketCache.withTicket(webScriptUri, ticket));
+                    }
+                    httpResponse = httpClientProvider.getHttpClient().execute(webScriptRequest);
+                    if (validating) {
+                        validation = responseValidator.validate(httpResponse, operation.getExpectedStatus());
+                    } else {
+                        EntityUtils.consume(httpResponse.getEntity());
+                    }
+                }
+
+                // Stop the clock, we are done with the Web Script call
+                suspendTimer();
+                if (ticket == null || retried ||
+                        httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_UNAUTHORIZED) {
+                    break;
+                }
+                // The server no longer knows the ticket, get a new one and call again
+                if (phaseTimer != null) {
+                    phaseTimer.stop();
+                }
+                ticketCache.invalidate(username, ticket);
+                ticket = ticketCache.getTicket(username);
+                retried = true;
+            }
+        } catch (Exception e) {
+            if (liveMetrics != null) {
+                liveMetrics.callCompleted(event.getName(), 0, false, (System.nanoTime() - callStart) / 1000000L);
+            }
+            throw e;
+        } finally {
+            if (phaseTimer != null) {
+                phases = phaseTimer.stop();
+            }
+        }
+        StatusLine httpStatus = httpResponse.getStatusLine();
+        long serviceNanos = System.nanoTime() - callStart;
+        long serviceTime = serviceNanos / 1000000L;
+        long responseTime = scheduleLag + serviceTime;
+        if (latencyRecorder != null) {
+            recordLatencies(latencyName, serviceNanos, responseTime, scheduleLag, phases);
+        }
+
+        // Check if the Alfresco server responded as expected, usually with OK, and with the expected body
+        boolean success = validation == null ?
+                httpStatus.getStatusCode() == operation.getExpectedStatus() : validation.isValid();
+        boolean recordedInFull = true;
+        if (aggregatedResultRecorder != null) {
+            aggregatedResultRecorder.record(latencyName, httpStatus.getStatusCode(), success, responseTime);
+            recordedInFull = aggregatedResultRecorder.isRecordedInFull(success);
+        }
+        if (liveMetrics != null) {
+            liveMetrics.callCompleted(event.getName(), httpStatus.getStatusCode(), success, responseTime);
+        }
+        if (success) {
             // Record the name of the Web Script Invocation to reflect that is was executed on the Alfresco server
-            boolean updated = webScriptInvocationDataDAO.updateWebScriptInvacationState(
-                    webScriptInvocationName, DataCreationState.Created);
+            boolean updated = updateWebScriptInvocationState(webScriptInvocationKey, DataCreationState.Created);
             if (updated) {
                 // Create 'done' event, which will not have any further associated event processors
-                Event doneEvent = new Event(eventNameWebScriptInvocationDone, 0L, webScriptInvocationName);
-                eventResult = new EventResult("Web Script Invocation " + webScriptInvocationName +
-                        " completed.", doneEvent);
+                Event doneEvent = new Event(eventNameWebScriptInvocationDone, 0L, webScriptInvocationKey);
+                // Calls that are not sampled are only in the aggregates, so leave the result without data
+                eventResult = new EventResult(recordedInFull ?
+                        addValidation(createResultData("Web Script Invocation " + webScriptInvocationName +
+                                " completed.", operation, serviceTime, responseTime, scheduleLag), validation) : null,
+                        doneEvent);
             } else {
                 throw new RuntimeException("Web Script Invocation " + webScriptInvocationName +
                         " was executed but not recorded.");
@@ -186,10 +538,316 @@ public class InvokeWebScriptEventProcessor extends AuthenticatedHttpEventProcess
             // Web Script Invocation failed
             String msg = String.format("Web Script call failed, ReST-call resulted in status:%d with error %s ",
                     httpStatus.getStatusCode(), httpStatus.getReasonPhrase());
-            eventResult = new EventResult(msg, Collections.<Event>emptyList(), false);
-            webScriptInvocationDataDAO.updateWebScriptInvacationState(webScriptInvocationName, DataCreationState.Failed);
+            if (validation != null) {
+                msg += validation.getFailure();
+            }
+            eventResult = new EventResult(addValidation(
+                    createResultData(msg, operation, serviceTime, responseTime, scheduleLag), validation),
+                    Collections.<Event>emptyList(), false);
+            updateWebScriptInvocationState(webScriptInvocationKey, DataCreationState.Failed);
         }
 
         return eventResult;
     }
+
+    /**
+     * Make the call of one step of a session. The first step logs the user in and the last one logs out again;
+     * every step but the last passes the session on to the next one, after the think time. The calls are made with
+     * the session as the state of the connection, so the pool hands back the connection the session used before.
+     */
+    private EventResult processSessionStep(Event event, DBObject stepData,
+                                           WebScriptInvocationData webScriptInvocationData,
+                                           long webScriptInvocationKey) throws Exception {
+        String webScriptInvocationName = WebScriptInvocationData.getName(webScriptInvocationKey);
+        int step = ((Number) stepData.get(WebScriptSession.FIELD_STEP)).intValue();
+        String ticket = (String) stepData.get(WebScriptSession.FIELD_TICKET);
+        long sessionStart = ((Number) stepData.get(WebScriptSession.FIELD_START)).longValue();
+        long sessionServiceTime = ((Number) stepData.get(WebScriptSession.FIELD_SERVICE_TIME)).longValue();
+        if (step >= session.getStepCount()) {
+            return new EventResult("Skipping processing for '" + webScriptInvocationName + "'.  Session has no step " +
+                    step + ".", false);
+        }
+        WebScriptOperation operation = session.getStep(step);
+        String latencyName = event.getName() + "." + operation.getName();
+        String username = webScriptInvocationData.getUsername();
+
+        long intendedTime = webScriptInvocationData.getScheduled() > 0L ?
+                webScriptInvocationData.getScheduled() : event.getScheduledTime();
+        long scheduleLag = Math.max(0L, System.currentTimeMillis() - intendedTime);
+        if (scheduleLagMonitor != null) {
+            scheduleLagMonitor.record(scheduleLag);
+        }
+
+        // Log in at the start of the session, the login is part of the session but not of the step
+        if (ticket == null) {
+            long loginStart = System.nanoTime();
+            ticket = ticketCache.login(username);
+            long loginNanos = System.nanoTime() - loginStart;
+            sessionServiceTime += loginNanos / 1000000L;
+            if (latencyRecorder != null) {
+                latencyRecorder.recordNanos(event.getName() + "." + WebScriptSession.LATENCY_NAME_LOGIN,
+                        LatencyRecorder.METRIC_SERVICE, loginNanos);
+            }
+        }
+
+        URI webScriptUri = URI.create(getFullUrlForPath(operation.getPath(webScriptInvocationData)));
+        HttpRequestBase webScriptRequest = operation.createRequest(webScriptUri.toString(), webScriptInvocationData);
+        webScriptRequest.setURI(AlfrescoTicketCache.withTicket(webScriptUri, ticket));
+
+        // Time the call of this step only
+        resumeTimer();
+        long callStart = System.nanoTime();
+        if (phaseTimer != null) {
+            phaseTimer.start();
+        }
+        if (liveMetrics != null) {
+            liveMetrics.callStarted(event.getName());
+        }
+        HttpResponse httpResponse;
+        ResponseValidator.Validation validation = null;
+        HttpPhaseTimer.Phases phases = null;
+        try {
+            httpResponse = httpClientProvider.getHttpClient().execute(webScriptRequest);
+            if (responseValidator != null && responseValidator.isEnabled()) {
+                validation = responseValidator.validate(httpResponse, operation.getExpectedStatus());
+            } else {
+                EntityUtils.consume(httpResponse.getEntity());
+            }
+        } catch (Exception e) {
+            if (liveMetrics != null) {
+                liveMetrics.callCompleted(event.getName(), 0, false, (System.nanoTime() - callStart) / 1000000L);
+            }
+            throw e;
+        } finally {
+            if (phaseTimer != null) {
+                phases = phaseTimer.stop();
+            }
+        }
+        suspendTimer();
+        long serviceNanos = System.nanoTime() - callStart;
+        long serviceTime = serviceNanos / 1000000L;
+        long responseTime = scheduleLag + serviceTime;
+        sessionServiceTime += serviceTime;
+        if (latencyRecorder != null) {
+            recordLatencies(latencyName, serviceNanos, responseTime, scheduleLag, phases);
+        }
+
+        StatusLine httpStatus = httpResponse.getStatusLine();
+        boolean success = validation == null ?
+                httpStatus.getStatusCode() == operation.getExpectedStatus() : validation.isValid();
+        boolean recordedInFull = true;
+        if (aggregatedResultRecorder != null) {
+            aggregatedResultRecorder.record(latencyName, httpStatus.getStatusCode(), success, responseTime);
+            recordedInFull = aggregatedResultRecorder.isRecordedInFull(success);
+        }
+        if (liveMetrics != null) {
+            liveMetrics.callCompleted(event.getName(), httpStatus.getStatusCode(), success, responseTime);
+        }
+        DBObject resultData = addValidation(createResultData(success ?
+                        "Web Script Invocation " + webScriptInvocationName + " completed session step " + step + "." :
+                        String.format("Web Script call failed in session step %d, ReST-call resulted in status:%d " +
+                                "with error %s %s", step, httpStatus.getStatusCode(), httpStatus.getReasonPhrase(),
+                                validation == null ? "" : validation.getFailure()),
+                operation, serviceTime, responseTime, scheduleLag), validation);
+        resultData.put(RESULT_FIELD_SESSION_STEP, step);
+
+        // Pass the session on to the next step, after the think time
+        if (success && step + 1 < session.getStepCount()) {
+            long nextScheduled = System.currentTimeMillis() + session.getThinkTimeMs();
+            webScriptInvocationData.setScheduled(nextScheduled);
+            Event nextStep = new Event(event.getName(), nextScheduled, WebScriptSession.createStepData(
+                    webScriptInvocationData, step + 1, ticket, sessionStart, sessionServiceTime));
+            // Steps that are not sampled are only in the aggregates, so leave the result without data
+            return new EventResult(recordedInFull ? resultData : null, nextStep);
+        }
+
+        // The session is over, log out and record the session as a whole
+        long logoutStart = System.nanoTime();
+        int logoutStatus = ticketCache.logout(ticket);
+        long logoutNanos = System.nanoTime() - logoutStart;
+        sessionServiceTime += logoutNanos / 1000000L;
+        if (logoutStatus != HttpStatus.SC_OK && logger.isDebugEnabled()) {
+            logger.debug("Logout of session " + webScriptInvocationName + " returned status " + logoutStatus);
+        }
+        long sessionTime = System.currentTimeMillis() - sessionStart;
+        if (latencyRecorder != null) {
+            latencyRecorder.recordNanos(event.getName() + "." + WebScriptSession.LATENCY_NAME_LOGOUT,
+                    LatencyRecorder.METRIC_SERVICE, logoutNanos);
+            String sessionName = event.getName() + "." + WebScriptSession.LATENCY_NAME_SESSION;
+            latencyRecorder.recordMillis(sessionName, LatencyRecorder.METRIC_SERVICE, sessionServiceTime);
+            latencyRecorder.recordMillis(sessionName, LatencyRecorder.METRIC_RESPONSE, sessionTime);
+        }
+        if (aggregatedResultRecorder != null) {
+            aggregatedResultRecorder.record(event.getName() + "." + WebScriptSession.LATENCY_NAME_SESSION,
+                    httpStatus.getStatusCode(), success, sessionTime);
+        }
+        resultData.put(RESULT_FIELD_SESSION_TIME, sessionTime);
+        resultData.put(RESULT_FIELD_SESSION_SERVICE_TIME, sessionServiceTime);
+        if (!success) {
+            updateWebScriptInvocationState(webScriptInvocationKey, DataCreationState.Failed);
+            return new EventResult(resultData, Collections.<Event>emptyList(), false);
+        }
+        if (!updateWebScriptInvocationState(webScriptInvocationKey, DataCreationState.Created)) {
+            throw new RuntimeException("Web Script Invocation " + webScriptInvocationName +
+                    " was executed but not recorded.");
+        }
+        return new EventResult(recordedInFull ? resultData : null,
+                new Event(eventNameWebScriptInvocationDone, 0L, webScriptInvocationKey));
+    }
+
+    /**
+     * Send the Web Script call through the non-blocking engine. The event is done once the call is dispatched;
+     * the invocation state, the latencies and the result of the call are recorded from the engine's completion
+     * threads.
+     */
+    private EventResult dispatchWebScriptInvocation(
+            final String eventName, final String latencyName, final long webScriptInvocationKey,
+            final WebScriptOperation operation, HttpRequestBase request, final String username, final String ticket,
+            final long scheduleLag) throws InterruptedException {
+        final String webScriptInvocationName = WebScriptInvocationData.getName(webScriptInvocationKey);
+        // Only the dispatch is timed here, the call itself is recorded by the completion event
+        resumeTimer();
+        if (liveMetrics != null) {
+            liveMetrics.callStarted(eventName);
+        }
+        boolean dispatched = false;
+        try {
+            // With a ticket the request is authenticated already
+            asyncHttpEngine.execute(request, ticket == null ? username : null, new AsyncWebScriptHttpEngine.Callback() {
+                @Override
+                public void completed(HttpResponse response, long callNanos) {
+                    StatusLine httpStatus = response.getStatusLine();
+                    boolean success = httpStatus.getStatusCode() == operation.getExpectedStatus();
+                    recordCompletion(callNanos, httpStatus.getStatusCode(), success, success ?
+                            "Web Script Invocation " + webScriptInvocationName + " completed." :
+                            String.format("Web Script call failed, ReST-call resulted in status:%d with error %s ",
+                                    httpStatus.getStatusCode(), httpStatus.getReasonPhrase()));
+                    if (success) {
+                        updateWebScriptInvocationState(webScriptInvocationKey, DataCreationState.Created);
+                    } else {
+                        if (ticket != null && httpStatus.getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+                            // Not retried, but the next call of the user gets a new ticket
+                            ticketCache.invalidate(username, ticket);
+                        }
+                        logger.warn("Web Script call for " + webScriptInvocationName + " failed with status " +
+                                httpStatus.getStatusCode() + " " + httpStatus.getReasonPhrase());
+                        updateWebScriptInvocationState(webScriptInvocationKey, DataCreationState.Failed);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e, long callNanos) {
+                    recordCompletion(callNanos, 0, false, "Web Script call failed: " + (e == null ? "cancelled" : e));
+                    logger.warn("Web Script call for " + webScriptInvocationName + " failed.", e);
+                    updateWebScriptInvocationState(webScriptInvocationKey, DataCreationState.Failed);
+                }
+
+                private void recordCompletion(long callNanos, int status, boolean success, String msg) {
+                    if (liveMetrics != null) {
+                        liveMetrics.callCompleted(eventName, status, success, scheduleLag + callNanos / 1000000L);
+                    }
+                    if (aggregatedResultRecorder != null) {
+                        // Counted here, the full result comes with the completion event below
+                        aggregatedResultRecorder.record(latencyName, status, success,
+                                scheduleLag + callNanos / 1000000L);
+                    }
+                    if (latencyRecorder != null) {
+                        recordLatencies(latencyName, callNanos, scheduleLag + callNanos / 1000000L, scheduleLag, null);
+                    }
+
+                    // The event of the call is done already, the result of the call is an event of its own
+                    if (eventService == null) {
+                        return;
+                    }
+                    // Calls that are not sampled are only in the aggregates, so their event only carries the key
+                    Object completedData = webScriptInvocationKey;
+                    if (aggregatedResultRecorder == null || aggregatedResultRecorder.isRecordedInFull(success)) {
+                        long serviceTime = callNanos / 1000000L;
+                        DBObject resultData = createResultData(msg, operation, serviceTime,
+                                scheduleLag + serviceTime, scheduleLag);
+                        resultData.put(WebScriptInvocationCompletedEventProcessor.FIELD_KEY, webScriptInvocationKey);
+                        resultData.put(WebScriptInvocationCompletedEventProcessor.FIELD_SUCCESS, success);
+                        resultData.put(WebScriptInvocationCompletedEventProcessor.FIELD_STATUS, status);
+                        completedData = resultData;
+                    }
+                    try {
+                        eventService.putEvent(new Event(eventNameWebScriptInvocationCompleted,
+                                System.currentTimeMillis(), completedData));
+                    } catch (RuntimeException e) {
+                        logger.error("Failed to record the result of the Web Script call for " +
+                                webScriptInvocationName, e);
+                    }
+                }
+            });
+            dispatched = true;
+        } finally {
+            if (!dispatched && liveMetrics != null) {
+                liveMetrics.callCompleted(eventName, 0, false, 0L);
+            }
+            suspendTimer();
+        }
+
+        return new EventResult("Web Script Invocation " + webScriptInvocationName + " dispatched.",
+                Collections.<Event>emptyList());
+    }
+
+    /**
+     * Record the latencies and, if known, the phases of a call under the name of the event, or operation
+     */
+    private void recordLatencies(
+            String eventName, long serviceNanos, long responseTime, long scheduleLag, HttpPhaseTimer.Phases phases) {
+        latencyRecorder.recordNanos(eventName, LatencyRecorder.METRIC_SERVICE, serviceNanos);
+        latencyRecorder.recordMillis(eventName, LatencyRecorder.METRIC_RESPONSE, responseTime);
+        latencyRecorder.recordMillis(eventName, LatencyRecorder.METRIC_SCHEDULE_LAG, scheduleLag);
+        if (phases == null) {
+            return;
+        }
+        if (phases.isSplit()) {
+            latencyRecorder.recordNanos(eventName,
+                    phases.isNewConnection() ? LatencyRecorder.METRIC_CONNECT : LatencyRecorder.METRIC_LEASE_WAIT,
+                    phases.getConnectionNanos());
+            latencyRecorder.recordNanos(eventName, LatencyRecorder.METRIC_BODY_READ, phases.getBodyReadNanos());
+        }
+        latencyRecorder.recordNanos(eventName, LatencyRecorder.METRIC_TTFB, phases.getTimeToFirstByteNanos());
+    }
+
+    /**
+     * Result data with the service time and the response time from the scheduled time side by side
+     */
+    private DBObject createResultData(
+            String msg, WebScriptOperation operation, long serviceTime, long responseTime, long scheduleLag) {
+        return BasicDBObjectBuilder
+                .start(RESULT_FIELD_MSG, msg)
+                .add(RESULT_FIELD_OPERATION, operation.getName())
+                .add(RESULT_FIELD_SERVICE_TIME, serviceTime)
+                .add(RESULT_FIELD_RESPONSE_TIME, responseTime)
+                .add(RESULT_FIELD_SCHEDULE_LAG, scheduleLag)
+                .get();
+    }
+
+    /**
+     * Add the size and body read time of a validated response to the result data
+     */
+    private DBObject addValidation(DBObject resultData, ResponseValidator.Validation validation) {
+        if (validation != null) {
+            resultData.put(RESULT_FIELD_BYTES, validation.getBytes());
+            resultData.put(RESULT_FIELD_BODY_READ_TIME, validation.getBodyReadNanos() / 1000000L);
+        }
+        return resultData;
+    }
+
+    /**
+     * Hand the state transition to the write-behind updater, or write it directly if that is not possible
+     *
+     * @return <tt>true</tt> if the transition was queued or written, or states are not recorded
+     */
+    private boolean updateWebScriptInvocationState(long webScriptInvocationKey, DataCreationState state) {
+        if (!recordState) {
+            return true;
+        }
+        if (stateUpdater != null && stateUpdater.submit(webScriptInvocationKey, state)) {
+            return true;
+        }
+        return webScriptInvocationDataDAO.updateWebScriptInvacationState(webScriptInvocationKey, state);
+    }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records latencies in HdrHistograms, one per event type and metric, for example
+ * <tt>invokeWebScript.service</tt> or <tt>invokeWebScript.ttfb</tt>.
+ * <p/>
+ * Recording is lock-free and cheap enough to do on every call. Every interval the histograms of that interval are
+ * written, tagged with their name, to an HdrHistogram log file for the test run, and added to a total that is
+ * summarised in the log when the test stops. Values are recorded in microseconds.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class LatencyRecorder {
+    private static Log logger = LogFactory.getLog(LatencyRecorder.class);
+
+    public static final String METRIC_SERVICE = "service";
+    public static final String METRIC_RESPONSE = "response";
+    public static final String METRIC_SCHEDULE_LAG = "scheduleLag";
+    public static final String METRIC_LEASE_WAIT = "leaseWait";
+    public static final String METRIC_CONNECT = "connect";
+    public static final String METRIC_TTFB = "ttfb";
+    public static final String METRIC_BODY_READ = "bodyRead";
+    public static final String METRIC_INSERT = "insert";
+
+    public static final int DEFAULT_INTERVAL_SECONDS = 10;
+
+    /**
+     * One more digit than the {@link CallCounts}, as these histograms are kept for the whole run and written out
+     */
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    /**
+     * Fully qualified Name (FQN) for the active Test Run, used to name the histogram log
+     */
+    private final String testRunFqn;
+
+    /**
+     * Record at all, if not all calls are no-ops
+     */
+    private boolean enabled;
+
+    /**
+     * The directory to write the histogram log to, nothing is written if empty
+     */
+    private String logDir;
+
+    /**
+     * How often (seconds) the interval histograms are written out
+     */
+    private int intervalSeconds;
+
+    private final ConcurrentMap<String, Recorder> recorders = new ConcurrentHashMap<String, Recorder>();
+    private final Map<String, Histogram> totals = new TreeMap<String, Histogram>();
+    private final Map<String, Histogram> recycled = new TreeMap<String, Histogram>();
+
+    private ScheduledExecutorService executor;
+    private PrintStream logStream;
+    private HistogramLogWriter logWriter;
+
+    /**
+     * @param testRunFqn the name of the test run
+     */
+    public LatencyRecorder(String testRunFqn) {
+        this.testRunFqn = testRunFqn;
+        this.enabled = false;
+        this.logDir = "";
+        this.intervalSeconds = DEFAULT_INTERVAL_SECONDS;
+    }
+
+    /**
+     * Switch recording on or off (default: <tt>false</tt>)
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Write interval histograms to a log file in this directory, best given as an absolute path (default: none)
+     */
+    public void setLogDir(String logDir) {
+        this.logDir = logDir;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_INTERVAL_SECONDS default} time between interval histograms
+     */
+    public void setIntervalSeconds(int intervalSeconds) {
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    /**
+     * Open the histogram log, if any, and start writing interval histograms
+     */
+    public synchronized void start() throws FileNotFoundException {
+        if (!enabled) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        if (logDir != null && logDir.trim().length() > 0) {
+            File dir = new File(logDir.trim());
+            if (!dir.exists() && !dir.mkdirs()) {
+                logger.warn("Unable to create histogram log directory " + dir.getAbsolutePath());
+            }
+            File logFile = new File(dir, testRunFqn.replaceAll("[^a-zA-Z0-9._-]", "_") + ".hlog");
+            logStream = new PrintStream(logFile);
+            logWriter = new HistogramLogWriter(logStream);
+            logWriter.outputLogFormatVersion();
+            logWriter.outputStartTime(startTime);
+            logWriter.setBaseTime(startTime);
+            logWriter.outputLegend();
+            logger.info("Writing latency histograms to " + logFile.getAbsolutePath());
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LatencyRecorder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeIntervals();
+                } catch (Throwable e) {
+                    logger.error("Failed to write latency histograms.", e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Write the last interval, close the log and summarise the whole run
+     */
+    public void stop() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(intervalSeconds, TimeUnit.SECONDS);
+        }
+        synchronized (this) {
+            writeIntervals();
+            if (logStream != null) {
+                logStream.close();
+                logStream = null;
+            }
+            for (Map.Entry<String, Histogram> entry : totals.entrySet()) {
+                Histogram total = entry.getValue();
+                logger.info(String.format(
+                        "%s: count=%d mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms",
+                        entry.getKey(), total.getTotalCount(), total.getMean() / 1000.0,
+                        total.getValueAtPercentile(50.0) / 1000.0, total.getValueAtPercentile(90.0) / 1000.0,
+                        total.getValueAtPercentile(99.0) / 1000.0, total.getValueAtPercentile(99.9) / 1000.0,
+                        total.getMaxValue() / 1000.0));
+            }
+        }
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param eventName the event type the latency belongs to
+     * @param metric    what was measured, e.g. {@link #METRIC_SERVICE}
+     * @param nanos     the latency in nanoseconds
+     */
+    public void recordNanos(String eventName, String metric, long nanos) {
+        recordMicros(eventName, metric, nanos / 1000L);
+    }
+
+    /**
+     * Record a latency
+     *
+     * @param eventName the event type the latency belongs to
+     * @param metric    what was measured, e.g. {@link #METRIC_SCHEDULE_LAG}
+     * @param millis    the latency in milliseconds
+     */
+    public void recordMillis(String eventName, String metric, long millis) {
+        recordMicros(eventName, metric, millis * 1000L);
+    }
+
+    private void recordMicros(String eventName, String metric, long micros) {
+        if (!enabled) {
+            return;
+        }
+        CallCounts.recordMicros(getRecorder(eventName + "." + metric), micros);
+    }
+
+    private Recorder getRecorder(String name) {
+        Recorder recorder = recorders.get(name);
+        if (recorder == null) {
+            recorder = CallCounts.putIfAbsent(recorders, name,
+                    new Recorder(CallCounts.HIGHEST_TRACKABLE_VALUE_US, SIGNIFICANT_DIGITS));
+        }
+        return recorder;
+    }
+
+    /**
+     * Swap out the histograms of the interval that just ended, write them to the log and add them to the totals
+     */
+    private synchronized void writeIntervals() {
+        for (Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+            String name = entry.getKey();
+            Histogram interval = entry.getValue().getIntervalHistogram(recycled.get(name));
+            recycled.put(name, interval);
+            if (interval.getTotalCount() == 0) {
+                continue;
+            }
+
+            Histogram total = totals.get(name);
+            if (total == null) {
+                total = new Histogram(CallCounts.HIGHEST_TRACKABLE_VALUE_US, SIGNIFICANT_DIGITS);
+                totals.put(name, total);
+            }
+            total.add(interval);
+
+            if (logWriter != null) {
+                interval.setTag(name);
+                logWriter.outputIntervalHistogram(interval);
+            }
+        }
+        if (logStream != null) {
+            logStream.flush();
+        }
+    }
+}
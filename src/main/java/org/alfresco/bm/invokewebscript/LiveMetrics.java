@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.Histogram;
+import org.alfresco.bm.invokewebscript.CallCounts.StripedCounter;
+import org.alfresco.http.HttpClientProvider;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.HttpClient;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Live metrics of a running test on this driver, to watch a long run without waiting for results to reach MongoDB.
+ * <p/>
+ * The event processors count every call as it starts and completes, by event name: calls, errors, calls in flight,
+ * calls by HTTP status and the latencies, in {@link CallCounts} like the {@link AggregatedResultRecorder}. The
+ * counters are striped over a number of cells, so threads counting at the same time do not contend, and the
+ * latencies go into HdrHistogram recorders, which writers never wait on.
+ * Once a second a sampler adds it all up into a snapshot: the rate of the last second, the totals, and the
+ * percentiles over a rolling window of the last seconds, together with the schedule lag and the use of the shared
+ * HTTP connection pool. Readers only ever see the snapshot, so reading costs the hot path nothing.
+ * <p/>
+ * The snapshot is published as a JMX MBean, <tt>org.alfresco.bm.invokewebscript:type=LiveMetrics,name=&lt;testRunFqn&gt;</tt>,
+ * and as JSON by the {@link LiveMetricsServlet}.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class LiveMetrics implements LiveMetricsMBean {
+    private static Log logger = LogFactory.getLog(LiveMetrics.class);
+
+    public static final int DEFAULT_WINDOW_SECONDS = 10;
+
+    /**
+     * Fields of the snapshot
+     */
+    public static final String FIELD_TIME = "time";
+    public static final String FIELD_EVENTS = "events";
+    public static final String FIELD_RATE = "rate";
+    public static final String FIELD_ITEM_RATE = "itemRate";
+    public static final String FIELD_CALLS = "calls";
+    public static final String FIELD_ERRORS = "errors";
+    public static final String FIELD_IN_FLIGHT = "inFlight";
+    public static final String FIELD_STATUS = "status";
+    public static final String FIELD_P50_MS = "p50Ms";
+    public static final String FIELD_P90_MS = "p90Ms";
+    public static final String FIELD_P99_MS = "p99Ms";
+    public static final String FIELD_MAX_MS = "maxMs";
+    public static final String FIELD_SCHEDULE_LAG = "scheduleLag";
+    public static final String FIELD_LAST_MS = "lastMs";
+    public static final String FIELD_AVERAGE_MS = "averageMs";
+    public static final String FIELD_LATE = "late";
+    public static final String FIELD_HTTP_POOL = "httpPool";
+    public static final String FIELD_LEASED = "leased";
+    public static final String FIELD_AVAILABLE = "available";
+    public static final String FIELD_PENDING = "pending";
+    public static final String FIELD_MAX = "max";
+    public static final String FIELD_ASYNC_IN_FLIGHT = "asyncInFlight";
+
+    /**
+     * The metrics of the tests running on this driver, by test run
+     */
+    private static final ConcurrentMap<String, LiveMetrics> RUNNING = new ConcurrentHashMap<String, LiveMetrics>();
+
+    /**
+     * The counters of one event name, with what the sampler needs to work out rates and the rolling window
+     */
+    private static class EventMetrics {
+        private final CallCounts counts = new CallCounts();
+        private final StripedCounter items = new StripedCounter();
+        private final StripedCounter inFlight = new StripedCounter();
+
+        private long sampledCalls;
+        private long sampledItems;
+        private final Histogram[] window;
+        private int windowIndex;
+        private final Histogram windowTotal =
+                new Histogram(CallCounts.HIGHEST_TRACKABLE_VALUE_US, CallCounts.SIGNIFICANT_DIGITS);
+
+        private EventMetrics(int windowSeconds) {
+            this.window = new Histogram[Math.max(1, windowSeconds)];
+        }
+    }
+
+    private final String testRunFqn;
+    private final HttpClientProvider httpClientProvider;
+
+    private boolean enabled;
+    private int windowSeconds;
+    private String invokeEventName;
+    private String scheduleEventName;
+    private ScheduleLagMonitor scheduleLagMonitor;
+    private AsyncWebScriptHttpEngine asyncHttpEngine;
+
+    private final ConcurrentMap<String, EventMetrics> events = new ConcurrentHashMap<String, EventMetrics>();
+    private ScheduledExecutorService executor;
+    private ObjectName objectName;
+    private long sampleTime;
+
+    private volatile DBObject snapshot;
+
+    /**
+     * @param testRunFqn         the name of the test run, which names the MBean
+     * @param httpClientProvider the provider of the shared HTTP client whose pool is reported
+     */
+    public LiveMetrics(String testRunFqn, HttpClientProvider httpClientProvider) {
+        this.testRunFqn = testRunFqn;
+        this.httpClientProvider = httpClientProvider;
+        this.enabled = false;
+        this.windowSeconds = DEFAULT_WINDOW_SECONDS;
+        this.invokeEventName = ScheduleWebScriptInvocationsEventProcessor.EVENT_NAME_INVOKE_WEB_SCRIPT;
+        this.scheduleEventName = WarmUpWebScriptInvocationsEventProcessor.EVENT_NAME_SCHEDULE_WEB_SCRIPT_INVOCATIONS;
+        this.snapshot = BasicDBObjectBuilder.start().get();
+    }
+
+    /**
+     * Switch on live metrics (default: <tt>false</tt>)
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_WINDOW_SECONDS default} number of seconds the percentiles are taken over
+     */
+    public void setWindowSeconds(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+    }
+
+    /**
+     * The event whose calls the MBean reports, by default <tt>invokeWebScript</tt>
+     */
+    public void setInvokeEventName(String invokeEventName) {
+        this.invokeEventName = invokeEventName;
+    }
+
+    /**
+     * The event whose scheduling rate the MBean reports, by default <tt>scheduleWebScriptInvocations</tt>
+     */
+    public void setScheduleEventName(String scheduleEventName) {
+        this.scheduleEventName = scheduleEventName;
+    }
+
+    /**
+     * Report the schedule lag of the invocations
+     */
+    public void setScheduleLagMonitor(ScheduleLagMonitor scheduleLagMonitor) {
+        this.scheduleLagMonitor = scheduleLagMonitor;
+    }
+
+    /**
+     * Report the calls in flight of the non-blocking engine, if it is enabled
+     */
+    public void setAsyncHttpEngine(AsyncWebScriptHttpEngine asyncHttpEngine) {
+        this.asyncHttpEngine = asyncHttpEngine;
+    }
+
+    /**
+     * @return the live metrics of the tests running on this driver, by test run
+     */
+    public static Map<String, LiveMetrics> getRunning() {
+        return Collections.unmodifiableMap(RUNNING);
+    }
+
+    public synchronized void start() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        sampleTime = System.currentTimeMillis();
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LiveMetrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+                } catch (Throwable e) {
+                    logger.error("Failed to sample live metrics.", e);
+                }
+            }
+        }, 1L, 1L, TimeUnit.SECONDS);
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName(
+                "org.alfresco.bm.invokewebscript:type=LiveMetrics,name=" + ObjectName.quote(testRunFqn));
+        if (mbeanServer.isRegistered(objectName)) {
+            mbeanServer.unregisterMBean(objectName);
+        }
+        mbeanServer.registerMBean(this, objectName);
+        RUNNING.put(testRunFqn, this);
+    }
+
+    public synchronized void stop() throws Exception {
+        if (executor == null) {
+            return;
+        }
+        RUNNING.remove(testRunFqn, this);
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        if (mbeanServer.isRegistered(objectName)) {
+            mbeanServer.unregisterMBean(objectName);
+        }
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * Count a call that is starting
+     */
+    public void callStarted(String eventName) {
+        if (!enabled) {
+            return;
+        }
+        getEventMetrics(eventName).inFlight.increment();
+    }
+
+    /**
+     * Count a call that {@link #callStarted(String) started} and is done
+     *
+     * @param eventName    the event the call was made for
+     * @param status       the HTTP status of the response, or 0 if there was none
+     * @param success      <tt>true</tt> if the call did what was expected
+     * @param responseTime the response time (millisec)
+     */
+    public void callCompleted(String eventName, int status, boolean success, long responseTime) {
+        if (!enabled) {
+            return;
+        }
+        EventMetrics metrics = getEventMetrics(eventName);
+        metrics.inFlight.add(-1L);
+        record(metrics, 1L, status, success, responseTime);
+    }
+
+    /**
+     * Count a batch of work that is not a call, such as scheduling a number of invocations
+     *
+     * @param eventName the event the work was done for
+     * @param items     the number of items handled, e.g. the invocations scheduled
+     * @param time      the time taken (millisec)
+     */
+    public void recordBatch(String eventName, long items, long time) {
+        if (!enabled) {
+            return;
+        }
+        record(getEventMetrics(eventName), items, 0, true, time);
+    }
+
+    private void record(EventMetrics metrics, long items, int status, boolean success, long time) {
+        metrics.items.add(items);
+        metrics.counts.record(status, success, time);
+    }
+
+    private EventMetrics getEventMetrics(String eventName) {
+        EventMetrics metrics = events.get(eventName);
+        if (metrics == null) {
+            metrics = CallCounts.putIfAbsent(events, eventName, new EventMetrics(windowSeconds));
+        }
+        return metrics;
+    }
+
+    /**
+     * Add up the counters into a new snapshot, with the rates of the second since the last one
+     */
+    private synchronized void sample() {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(now - sampleTime, 1L) / 1000.0;
+        sampleTime = now;
+
+        BasicDBObjectBuilder eventsSnapshot = BasicDBObjectBuilder.start();
+        for (Map.Entry<String, EventMetrics> entry : events.entrySet()) {
+            EventMetrics metrics = entry.getValue();
+
+            // Move the rolling window on by the second that just ended
+            int index = metrics.windowIndex;
+            metrics.window[index] = metrics.counts.getIntervalHistogram(metrics.window[index]);
+            metrics.windowIndex = (index + 1) % metrics.window.length;
+            metrics.windowTotal.reset();
+            for (Histogram histogram : metrics.window) {
+                if (histogram != null) {
+                    metrics.windowTotal.add(histogram);
+                }
+            }
+
+            long calls = metrics.counts.getCalls();
+            long items = metrics.items.sum();
+            BasicDBObjectBuilder statuses = BasicDBObjectBuilder.start();
+            for (Map.Entry<Integer, Long> status : metrics.counts.getStatusCounts().entrySet()) {
+                statuses.add(Integer.toString(status.getKey()), status.getValue());
+            }
+            Histogram window = metrics.windowTotal;
+            eventsSnapshot.add(entry.getKey(), BasicDBObjectBuilder
+                    .start(FIELD_RATE, (calls - metrics.sampledCalls) / seconds)
+                    .add(FIELD_ITEM_RATE, (items - metrics.sampledItems) / seconds)
+                    .add(FIELD_CALLS, calls)
+                    .add(FIELD_ERRORS, metrics.counts.getErrors())
+                    .add(FIELD_IN_FLIGHT, metrics.inFlight.sum())
+                    .add(FIELD_STATUS, statuses.get())
+                    .add(FIELD_P50_MS, window.getValueAtPercentile(50.0) / 1000.0)
+                    .add(FIELD_P90_MS, window.getValueAtPercentile(90.0) / 1000.0)
+                    .add(FIELD_P99_MS, window.getValueAtPercentile(99.0) / 1000.0)
+                    .add(FIELD_MAX_MS, window.getMaxValue() / 1000.0)
+                    .get());
+            metrics.sampledCalls = calls;
+            metrics.sampledItems = items;
+        }
+
+        BasicDBObjectBuilder builder = BasicDBObjectBuilder
+                .start(FIELD_TIME, now)
+                .add(FIELD_EVENTS, eventsSnapshot.get());
+        if (scheduleLagMonitor != null) {
+            builder.add(FIELD_SCHEDULE_LAG, BasicDBObjectBuilder
+                    .start(FIELD_LAST_MS, scheduleLagMonitor.getLastLagMs())
+                    .add(FIELD_AVERAGE_MS, scheduleLagMonitor.getAverageLagMs())
+                    .add(FIELD_MAX_MS, scheduleLagMonitor.getMaxLagMs())
+                    .add(FIELD_LATE, scheduleLagMonitor.getLateCount())
+                    .get());
+        }
+        PoolStats pool = getPoolStats();
+        if (pool != null) {
+            builder.add(FIELD_HTTP_POOL, BasicDBObjectBuilder
+                    .start(FIELD_LEASED, pool.getLeased())
+                    .add(FIELD_AVAILABLE, pool.getAvailable())
+                    .add(FIELD_PENDING, pool.getPending())
+                    .add(FIELD_MAX, pool.getMax())
+                    .get());
+        }
+        if (asyncHttpEngine != null && asyncHttpEngine.isEnabled()) {
+            builder.add(FIELD_ASYNC_IN_FLIGHT, asyncHttpEngine.getInFlight());
+        }
+        snapshot = builder.get();
+    }
+
+    /**
+     * @return the totals of the shared connection pool, or <tt>null</tt> if its connection manager cannot tell
+     */
+    private PoolStats getPoolStats() {
+        HttpClient httpClient = httpClientProvider.getHttpClient();
+        Object connectionManager = httpClient.getConnectionManager();
+        if (connectionManager instanceof ConnPoolControl) {
+            return ((ConnPoolControl<?>) connectionManager).getTotalStats();
+        }
+        return null;
+    }
+
+    /**
+     * @return the most recent snapshot
+     */
+    public DBObject getSnapshotObject() {
+        return snapshot;
+    }
+
+    private DBObject getEventSnapshot(String eventName) {
+        DBObject eventsSnapshot = (DBObject) snapshot.get(FIELD_EVENTS);
+        return eventsSnapshot == null ? null : (DBObject) eventsSnapshot.get(eventName);
+    }
+
+    private double getEventValue(String eventName, String field) {
+        DBObject eventSnapshot = getEventSnapshot(eventName);
+        Object value = eventSnapshot == null ? null : eventSnapshot.get(field);
+        return value == null ? 0.0 : ((Number) value).doubleValue();
+    }
+
+    private long getValue(String group, String field, long missing) {
+        DBObject values = (DBObject) snapshot.get(group);
+        Object value = values == null ? null : values.get(field);
+        return value == null ? missing : ((Number) value).longValue();
+    }
+
+    @Override
+    public double getInvocationRate() {
+        return getEventValue(invokeEventName, FIELD_RATE);
+    }
+
+    @Override
+    public long getInFlight() {
+        return (long) getEventValue(invokeEventName, FIELD_IN_FLIGHT);
+    }
+
+    @Override
+    public long getErrors() {
+        return (long) getEventValue(invokeEventName, FIELD_ERRORS);
+    }
+
+    @Override
+    public double getLatencyP50Ms() {
+        return getEventValue(invokeEventName, FIELD_P50_MS);
+    }
+
+    @Override
+    public double getLatencyP90Ms() {
+        return getEventValue(invokeEventName, FIELD_P90_MS);
+    }
+
+    @Override
+    public double getLatencyP99Ms() {
+        return getEventValue(invokeEventName, FIELD_P99_MS);
+    }
+
+    @Override
+    public double getLatencyMaxMs() {
+        return getEventValue(invokeEventName, FIELD_MAX_MS);
+    }
+
+    @Override
+    public double getSchedulingRate() {
+        return getEventValue(scheduleEventName, FIELD_ITEM_RATE);
+    }
+
+    @Override
+    public long getScheduleLagMs() {
+        return getValue(FIELD_SCHEDULE_LAG, FIELD_LAST_MS, 0L);
+    }
+
+    @Override
+    public long getScheduleLagMaxMs() {
+        return getValue(FIELD_SCHEDULE_LAG, FIELD_MAX_MS, 0L);
+    }
+
+    @Override
+    public int getHttpPoolLeased() {
+        return (int) getValue(FIELD_HTTP_POOL, FIELD_LEASED, -1L);
+    }
+
+    @Override
+    public int getHttpPoolAvailable() {
+        return (int) getValue(FIELD_HTTP_POOL, FIELD_AVAILABLE, -1L);
+    }
+
+    @Override
+    public int getHttpPoolPending() {
+        return (int) getValue(FIELD_HTTP_POOL, FIELD_PENDING, -1L);
+    }
+
+    @Override
+    public int getHttpPoolMax() {
+        return (int) getValue(FIELD_HTTP_POOL, FIELD_MAX, -1L);
+    }
+
+    @Override
+    public String getSnapshot() {
+        return JSON.serialize(snapshot);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+/**
+ * The JMX view of the {@link LiveMetrics} of a running test. All values are from the last sample, taken every second.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public interface LiveMetricsMBean {
+    /**
+     * @return the Web Script calls completed in the last second
+     */
+    double getInvocationRate();
+
+    /**
+     * @return the Web Script calls started but not completed
+     */
+    long getInFlight();
+
+    /**
+     * @return the Web Script calls that failed since the test started
+     */
+    long getErrors();
+
+    double getLatencyP50Ms();
+
+    double getLatencyP90Ms();
+
+    double getLatencyP99Ms();
+
+    double getLatencyMaxMs();
+
+    /**
+     * @return the invocations scheduled in the last second
+     */
+    double getSchedulingRate();
+
+    /**
+     * @return how far behind schedule the most recent invocation was started
+     */
+    long getScheduleLagMs();
+
+    long getScheduleLagMaxMs();
+
+    /**
+     * @return the connections of the shared HTTP pool in use, or -1 if the pool cannot tell
+     */
+    int getHttpPoolLeased();
+
+    int getHttpPoolAvailable();
+
+    int getHttpPoolPending();
+
+    int getHttpPoolMax();
+
+    /**
+     * @return all metrics, by event name, as JSON
+     */
+    String getSnapshot();
+}
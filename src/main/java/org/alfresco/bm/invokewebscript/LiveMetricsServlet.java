@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Serves the latest {@link LiveMetrics} snapshots of the tests running on this driver as JSON, by test run.
+ * The <tt>run</tt> parameter picks a single test run, which answers 404 if it is not running here.
+ * <p/>
+ * Only the snapshots are read, so polling this as often as once a second does not touch the test itself.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class LiveMetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    public static final String PARAM_RUN = "run";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String run = request.getParameter(PARAM_RUN);
+        DBObject snapshots = new BasicDBObject();
+        for (Map.Entry<String, LiveMetrics> entry : LiveMetrics.getRunning().entrySet()) {
+            if (run == null || run.equals(entry.getKey())) {
+                snapshots.put(entry.getKey(), entry.getValue().getSnapshotObject());
+            }
+        }
+        if (run != null && snapshots.keySet().isEmpty()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Test run " + run + " is not running here.");
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(JSON.serialize(snapshots));
+    }
+}
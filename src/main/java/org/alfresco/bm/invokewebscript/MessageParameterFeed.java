@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A feed of message parameters read from a local file, one value per line, to replay realistic parameters such as
+ * production query strings or document names.
+ * <p/>
+ * When the feed starts, each value is URL encoded once and written to a temporary file, with the offset of every
+ * line kept in an index. The temporary file is memory-mapped, so the values stay off the heap however large the
+ * file is and drawing one is a lookup in the index and a copy of its bytes. Values are drawn <b>sequential</b>ly
+ * by position, at <b>random</b>, or <b>weighted</b>, in which case each line is a value and a weight separated by
+ * the last tab.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class MessageParameterFeed {
+    private static Log logger = LogFactory.getLog(MessageParameterFeed.class);
+
+    public static final String MODE_SEQUENTIAL = "sequential";
+    public static final String MODE_RANDOM = "random";
+    public static final String MODE_WEIGHTED = "weighted";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private String file;
+    private String mode;
+
+    private File encodedFile;
+    private MappedByteBuffer values;
+
+    /**
+     * The offset of each value in {@link #values}, with the end of the last value at the end
+     */
+    private int[] offsets;
+    private int count;
+
+    /**
+     * The running total of the weights, by value, when weighted
+     */
+    private double[] cumulativeWeights;
+
+    public MessageParameterFeed() {
+        this.file = "";
+        this.mode = MODE_SEQUENTIAL;
+    }
+
+    /**
+     * The file to read the values from (default: empty, no feed)
+     */
+    public void setFile(String file) {
+        this.file = file == null ? "" : file.trim();
+    }
+
+    /**
+     * How values are drawn: {@link #MODE_SEQUENTIAL}, {@link #MODE_RANDOM} or {@link #MODE_WEIGHTED}
+     */
+    public void setMode(String mode) {
+        if (!Arrays.asList(MODE_SEQUENTIAL, MODE_RANDOM, MODE_WEIGHTED).contains(mode)) {
+            throw new IllegalArgumentException("Unknown message feed mode '" + mode + "'.");
+        }
+        this.mode = mode;
+    }
+
+    public boolean isEnabled() {
+        return file.length() > 0;
+    }
+
+    public synchronized void start() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        boolean weighted = MODE_WEIGHTED.equals(mode);
+        offsets = new int[1024];
+        cumulativeWeights = weighted ? new double[1024] : null;
+        count = 0;
+
+        encodedFile = File.createTempFile("wsfeed", ".dat");
+        encodedFile.deleteOnExit();
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(encodedFile), 65536);
+        try {
+            FileChannel channel = source.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Message feed file " + file + " is larger than 2GB.");
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            byte[] line = new byte[256];
+            int lineLength = 0;
+            long written = 0L;
+            double totalWeight = 0.0;
+            while (true) {
+                boolean end = !in.hasRemaining();
+                byte b = end ? (byte) '\n' : in.get();
+                if (b != '\n') {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                    continue;
+                }
+
+                // A whole line: encode its value and note where it goes
+                int valueLength = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                double weight = 1.0;
+                if (weighted) {
+                    int tab = valueLength - 1;
+                    while (tab >= 0 && line[tab] != '\t') {
+                        tab--;
+                    }
+                    if (tab >= 0) {
+                        weight = Double.parseDouble(new String(line, tab + 1, valueLength - tab - 1, US_ASCII).trim());
+                        valueLength = tab;
+                    }
+                }
+                if (valueLength > 0 && weight > 0.0) {
+                    byte[] encoded = URLEncoder.encode(new String(line, 0, valueLength, UTF_8), "UTF-8")
+                            .getBytes(US_ASCII);
+                    if (written + encoded.length > Integer.MAX_VALUE) {
+                        throw new IllegalArgumentException("Encoded message feed " + file + " is larger than 2GB.");
+                    }
+                    if (count + 1 >= offsets.length) {
+                        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                        if (weighted) {
+                            cumulativeWeights = Arrays.copyOf(cumulativeWeights, cumulativeWeights.length * 2);
+                        }
+                    }
+                    offsets[count] = (int) written;
+                    if (weighted) {
+                        totalWeight += weight;
+                        cumulativeWeights[count] = totalWeight;
+                    }
+                    os.write(encoded);
+                    written += encoded.length;
+                    count++;
+                }
+                lineLength = 0;
+                if (end) {
+                    break;
+                }
+            }
+            offsets[count] = (int) written;
+        } finally {
+            os.close();
+            source.close();
+        }
+        if (count == 0) {
+            throw new IllegalArgumentException("Message feed file " + file + " has no values.");
+        }
+
+        RandomAccessFile encoded = new RandomAccessFile(encodedFile, "r");
+        try {
+            values = encoded.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, encoded.length());
+        } finally {
+            encoded.close();
+        }
+        logger.info("Message feed " + file + " loaded: " + count + " values drawn " + mode + ", indexed in " +
+                (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    public synchronized void stop() {
+        values = null;
+        if (encodedFile != null && !encodedFile.delete()) {
+            logger.debug("Could not delete " + encodedFile + ", it is removed when the JVM exits.");
+        }
+        encodedFile = null;
+    }
+
+    /**
+     * @return the number of values in the feed
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Draw a value
+     *
+     * @param position the position of the invocation, which picks the value when drawing sequentially
+     * @return the URL encoded value
+     */
+    public String next(long position) {
+        int index;
+        if (MODE_RANDOM.equals(mode)) {
+            index = ThreadLocalRandom.current().nextInt(count);
+        } else if (MODE_WEIGHTED.equals(mode)) {
+            double target = ThreadLocalRandom.current().nextDouble() * cumulativeWeights[count - 1];
+            index = Arrays.binarySearch(cumulativeWeights, 0, count, target);
+            index = index < 0 ? -index - 1 : index + 1;
+            index = Math.min(index, count - 1);
+        } else {
+            index = (int) (position % count);
+        }
+        return get(index);
+    }
+
+    /**
+     * @return the URL encoded value at the index
+     */
+    public String get(int index) {
+        int start = offsets[index];
+        byte[] bytes = new byte[offsets[index + 1] - start];
+        ByteBuffer buffer = values.duplicate();
+        buffer.position(start);
+        buffer.get(bytes);
+        return new String(bytes, US_ASCII);
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+/**
+ * Checks Web Script responses while their bodies are read, rather than after buffering them.
+ * <p/>
+ * The body is read as a stream through a buffer that each thread reuses, and every chunk is fed to the checks as
+ * bytes: expected substrings and quoted JSON field names followed by a colon are searched for as byte patterns that
+ * carry over from one chunk to the next, and the number of bytes is checked against a minimum and a maximum. Only a
+ * regular expression needs the body as a whole; it is then kept in a reused byte array, up to the maximum size, and
+ * matched through a character view of the bytes, one byte per character, so patterns should stick to ASCII.
+ * No strings are made of the body, and a response that passes allocates nothing but its stream; a message is only
+ * put together for a response that fails.
+ * <p/>
+ * The number of bytes received and the time taken to read the body are reported with each
+ * {@link Validation validation}, and in totals when the test stops.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class ResponseValidator {
+    private static Log logger = LogFactory.getLog(ResponseValidator.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * The most a regular expression is matched against when there is no maximum size
+     */
+    public static final int DEFAULT_REGEX_MAX_BYTES = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private boolean enabled;
+    private int bufferSize;
+    private long minBytes;
+    private long maxBytes;
+    private List<BytePattern> expectedContent;
+    private List<BytePattern> expectedJsonFields;
+    private Pattern expectedRegex;
+
+    private final AtomicLong validatedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong bytesTotal = new AtomicLong();
+    private final AtomicLong bodyReadNanosTotal = new AtomicLong();
+
+    private final ThreadLocal<Validation> validations = new ThreadLocal<Validation>() {
+        @Override
+        protected Validation initialValue() {
+            return new Validation(ResponseValidator.this);
+        }
+    };
+
+    /**
+     * A byte pattern, with the table to carry a partial match over from one chunk to the next (Knuth-Morris-Pratt)
+     */
+    private static class BytePattern {
+        private final String text;
+        private final byte[] bytes;
+        private final int[] fallback;
+
+        private BytePattern(String text, byte[] bytes) {
+            this.text = text;
+            this.bytes = bytes;
+            this.fallback = new int[bytes.length];
+            for (int i = 1, k = 0; i < bytes.length; i++) {
+                while (k > 0 && bytes[i] != bytes[k]) {
+                    k = fallback[k - 1];
+                }
+                if (bytes[i] == bytes[k]) {
+                    k++;
+                }
+                fallback[i] = k;
+            }
+        }
+
+        /**
+         * @return the number of pattern bytes matched after the byte, <tt>bytes.length</tt> for a whole match
+         */
+        private int next(int matched, byte b) {
+            if (matched == bytes.length) {
+                matched = fallback[matched - 1];
+            }
+            while (matched > 0 && b != bytes[matched]) {
+                matched = fallback[matched - 1];
+            }
+            return b == bytes[matched] ? matched + 1 : matched;
+        }
+    }
+
+    /**
+     * The outcome of reading one response, reused by the thread for its next response
+     */
+    public static class Validation implements CharSequence {
+        private final ResponseValidator validator;
+        private final byte[] buffer;
+        private byte[] body;
+        private int bodyLength;
+        private Matcher matcher;
+        private int[] contentMatched;
+        private int[] fieldMatched;
+        private boolean[] fieldColon;
+
+        private int status;
+        private long bytes;
+        private long bodyReadNanos;
+        private String failure;
+
+        private Validation(ResponseValidator validator) {
+            this.validator = validator;
+            this.buffer = new byte[validator.bufferSize];
+            this.body = new byte[0];
+        }
+
+        private void reset(int status) {
+            this.status = status;
+            this.bytes = 0L;
+            this.bodyReadNanos = 0L;
+            this.failure = null;
+            this.bodyLength = 0;
+            contentMatched = reset(contentMatched, validator.expectedContent.size());
+            fieldMatched = reset(fieldMatched, validator.expectedJsonFields.size());
+            if (fieldColon == null || fieldColon.length != fieldMatched.length) {
+                fieldColon = new boolean[fieldMatched.length];
+            } else {
+                Arrays.fill(fieldColon, false);
+            }
+        }
+
+        private static int[] reset(int[] matched, int size) {
+            if (matched == null || matched.length != size) {
+                return new int[size];
+            }
+            Arrays.fill(matched, 0);
+            return matched;
+        }
+
+        /**
+         * @return <tt>true</tt> if the response passed all checks
+         */
+        public boolean isValid() {
+            return failure == null;
+        }
+
+        /**
+         * @return why the response did not pass, or <tt>null</tt> if it did
+         */
+        public String getFailure() {
+            return failure;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the number of body bytes received
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the time taken to read the body
+         */
+        public long getBodyReadNanos() {
+            return bodyReadNanos;
+        }
+
+        @Override
+        public int length() {
+            return bodyLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (body[index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(body, start, end - start, ISO_8859_1);
+        }
+    }
+
+    public ResponseValidator() {
+        this.enabled = false;
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
+        this.minBytes = 0L;
+        this.maxBytes = 0L;
+        this.expectedContent = new ArrayList<BytePattern>();
+        this.expectedJsonFields = new ArrayList<BytePattern>();
+    }
+
+    /**
+     * Switch on response validation (default: <tt>false</tt>), when off only the status is checked
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_BUFFER_SIZE default} size of the buffer bodies are read through
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * The fewest body bytes a response must have (default: 0)
+     */
+    public void setMinBytes(long minBytes) {
+        this.minBytes = minBytes;
+    }
+
+    /**
+     * The most body bytes a response may have, 0 for no limit (default)
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Text each body must contain, several separated by <tt>|</tt> (default: empty, none)
+     */
+    public void setExpectedContent(String expectedContent) {
+        List<BytePattern> patterns = new ArrayList<BytePattern>();
+        for (String text : expectedContent.split("\\|")) {
+            if (text.length() > 0) {
+                patterns.add(new BytePattern(text, text.getBytes(UTF_8)));
+            }
+        }
+        this.expectedContent = patterns;
+    }
+
+    /**
+     * Comma-separated names of the fields each JSON body must have, at any depth (default: empty, none)
+     */
+    public void setExpectedJsonFields(String expectedJsonFields) {
+        List<BytePattern> patterns = new ArrayList<BytePattern>();
+        for (String field : expectedJsonFields.split(",")) {
+            if (field.trim().length() > 0) {
+                patterns.add(new BytePattern(field.trim(), ("\"" + field.trim() + "\"").getBytes(UTF_8)));
+            }
+        }
+        this.expectedJsonFields = patterns;
+    }
+
+    /**
+     * A regular expression found somewhere in each body (default: empty, none)
+     */
+    public void setExpectedRegex(String expectedRegex) {
+        this.expectedRegex = expectedRegex == null || expectedRegex.length() == 0 ?
+                null : Pattern.compile(expectedRegex);
+    }
+
+    public void stop() {
+        if (!enabled) {
+            return;
+        }
+        long validated = validatedCount.get();
+        logger.info(String.format(
+                "Response validation: %d responses, %d failed, %d bytes received, body read mean=%.1fms",
+                validated, failedCount.get(), bytesTotal.get(),
+                validated == 0L ? 0.0 : bodyReadNanosTotal.get() / (validated * 1000000.0)));
+    }
+
+    /**
+     * Read the body of a response and check it. The body is always consumed, so the connection can be reused.
+     *
+     * @param response       the response, with its body not read yet
+     * @param expectedStatus the status the response should have
+     * @return the outcome, which is only valid until the thread validates its next response
+     */
+    public Validation validate(HttpResponse response, int expectedStatus) throws IOException {
+        Validation validation = validations.get();
+        validation.reset(response.getStatusLine().getStatusCode());
+        long start = System.nanoTime();
+        HttpEntity entity = response.getEntity();
+        boolean checkBody = validation.status == expectedStatus;
+        if (entity != null) {
+            InputStream in = entity.getContent();
+            try {
+                int read;
+                while ((read = in.read(validation.buffer)) != -1) {
+                    if (checkBody) {
+                        check(validation, validation.buffer, read);
+                    }
+                    validation.bytes += read;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        validation.bodyReadNanos = System.nanoTime() - start;
+
+        // Only now that the body is read is it known whether everything was in it
+        if (!checkBody) {
+            validation.failure = "Status " + validation.status + " instead of " + expectedStatus;
+        } else {
+            validation.failure = getFailure(validation);
+        }
+        validatedCount.incrementAndGet();
+        bytesTotal.addAndGet(validation.bytes);
+        bodyReadNanosTotal.addAndGet(validation.bodyReadNanos);
+        if (validation.failure != null) {
+            failedCount.incrementAndGet();
+        }
+        return validation;
+    }
+
+    /**
+     * Feed a chunk of the body to the pattern searches, and keep it for the regular expression
+     */
+    private void check(Validation validation, byte[] chunk, int length) {
+        for (int p = 0; p < validation.contentMatched.length; p++) {
+            BytePattern pattern = expectedContent.get(p);
+            int matched = validation.contentMatched[p];
+            for (int i = 0; i < length && matched < pattern.bytes.length; i++) {
+                matched = pattern.next(matched, chunk[i]);
+            }
+            validation.contentMatched[p] = matched;
+        }
+        for (int p = 0; p < validation.fieldMatched.length; p++) {
+            if (validation.fieldColon[p]) {
+                continue;
+            }
+            BytePattern pattern = expectedJsonFields.get(p);
+            int matched = validation.fieldMatched[p];
+            for (int i = 0; i < length; i++) {
+                byte b = chunk[i];
+                if (matched == pattern.bytes.length) {
+                    // A quoted name, which is a field only if a colon comes next
+                    if (b == ':') {
+                        validation.fieldColon[p] = true;
+                        break;
+                    } else if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                        continue;
+                    }
+                }
+                matched = pattern.next(matched, b);
+            }
+            validation.fieldMatched[p] = matched;
+        }
+        if (expectedRegex != null) {
+            long limit = maxBytes > 0L ? Math.min(maxBytes, Integer.MAX_VALUE) : DEFAULT_REGEX_MAX_BYTES;
+            int keep = (int) Math.min(length, limit - validation.bodyLength);
+            if (keep > 0) {
+                if (validation.bodyLength + keep > validation.body.length) {
+                    validation.body = Arrays.copyOf(validation.body,
+                            (int) Math.min(limit, Math.max(validation.body.length * 2L, validation.bodyLength + keep)));
+                }
+                System.arraycopy(chunk, 0, validation.body, validation.bodyLength, keep);
+                validation.bodyLength += keep;
+            }
+        }
+    }
+
+    /**
+     * @return why a response with the expected status did not pass, or <tt>null</tt> if it did
+     */
+    private String getFailure(Validation validation) {
+        if (validation.bytes < minBytes) {
+            return "Body of " + validation.bytes + " bytes is smaller than " + minBytes;
+        }
+        if (maxBytes > 0L && validation.bytes > maxBytes) {
+            return "Body of " + validation.bytes + " bytes is larger than " + maxBytes;
+        }
+        for (int p = 0; p < validation.contentMatched.length; p++) {
+            if (validation.contentMatched[p] < expectedContent.get(p).bytes.length) {
+                return "Body does not contain '" + expectedContent.get(p).text + "'";
+            }
+        }
+        for (int p = 0; p < validation.fieldColon.length; p++) {
+            if (!validation.fieldColon[p]) {
+                return "Body has no JSON field '" + expectedJsonFields.get(p).text + "'";
+            }
+        }
+        if (expectedRegex != null) {
+            if (validation.matcher == null) {
+                validation.matcher = expectedRegex.matcher(validation);
+            } else {
+                validation.matcher.reset(validation);
+            }
+            if (!validation.matcher.find()) {
+                return "Body does not match '" + expectedRegex.pattern() + "'";
+            }
+        }
+        return null;
+    }
+
+    public long getValidatedCount() {
+        return validatedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getBytesTotal() {
+        return bytesTotal.get();
+    }
+}
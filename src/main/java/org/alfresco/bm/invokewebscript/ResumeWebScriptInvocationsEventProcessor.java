@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.bm.data.WebScriptInvocationData;
+import org.alfresco.bm.data.WebScriptInvocationDataDAO;
+import org.alfresco.bm.event.AbstractEventProcessor;
+import org.alfresco.bm.event.Event;
+import org.alfresco.bm.event.EventResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+
+/**
+ * Resume the Web Script (WS) invocations that a test run, stopped by a crash or restart, left scheduled.
+ * <p/>
+ * <h1>Input</h1>
+ * <p/>
+ * No data on the first event, how far the resuming got on the rescheduled ones.
+ * <p/>
+ * <h1>Data</h1>
+ * <p/>
+ * The MongoDB collection containing the Web Script Invocation data of the run being resumed.
+ * <p/>
+ * <h1>Actions</h1>
+ * <p/>
+ * Reads the invocations of the other run that are still Scheduled, a batch at a time in sequence order, and sends
+ * each one straight to the {@link #EVENT_NAME_INVOKE_WEB_SCRIPT invoking} event processor on a fresh timeline,
+ * spaced by the time between invocations. Each batch carries on after the last sequence number of the previous one,
+ * so only one batch is held in memory however many invocations are left. Before their events are sent the
+ * invocations of a batch are claimed for this run, so a resume event that is processed again does not send them
+ * twice. The events only carry the invocation key, so the invoking processor reads the current state and skips any
+ * invocation that is no longer Scheduled by the time its event comes.
+ * <p/>
+ * Resuming is at-most-once: a batch is claimed before its events are persisted, so if this driver stops in between,
+ * the invocations of that batch stay Scheduled but claimed and are not resumed again. Losing a batch on a crash is
+ * preferred over invoking it twice.
+ * <p/>
+ * <h1>Output</h1>
+ * <p/>
+ * Resumed up to 100:
+ * {@link #EVENT_NAME_INVOKE_WEB_SCRIPT}: The Web Script Invocation key<br/>
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class ResumeWebScriptInvocationsEventProcessor extends AbstractEventProcessor {
+    private static Log logger = LogFactory.getLog(ResumeWebScriptInvocationsEventProcessor.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final String EVENT_NAME_INVOKE_WEB_SCRIPT = "invokeWebScript";
+
+    /**
+     * Fields of the data carried by the rescheduled event
+     */
+    public static final String FIELD_LAST_SEQ = "lastSeq";
+    public static final String FIELD_RESUMED = "resumed";
+    public static final String FIELD_TIMELINE_START = "timelineStart";
+
+    /**
+     * Web Script Invocation data access object
+     */
+    private final WebScriptInvocationDataDAO webScriptInvocationDataDAO;
+
+    /**
+     * Fully qualified Name (FQN) for the active Test Run
+     */
+    private final String testRunFqn;
+
+    /**
+     * Fully qualified Name (FQN) of the Test Run being resumed
+     */
+    private final String resumeFromRun;
+
+    /**
+     * Time between each resumed Web Script invocation.
+     */
+    private final long timeBetweenWebScriptInvocations;
+
+    private int batchSize;
+
+    /**
+     * @param webScriptInvocationDataDAO      data access object used to read the Web Script Invocation data
+     * @param testRunFqn                      the name of the test run
+     * @param resumeFromRun                   the name of the test run being resumed
+     * @param timeBetweenWebScriptInvocations time in milliseconds between each resumed Web Script invocation
+     */
+    public ResumeWebScriptInvocationsEventProcessor(WebScriptInvocationDataDAO webScriptInvocationDataDAO,
+                                                    String testRunFqn, String resumeFromRun,
+                                                    long timeBetweenWebScriptInvocations) {
+        super();
+
+        this.webScriptInvocationDataDAO = webScriptInvocationDataDAO;
+        this.testRunFqn = testRunFqn;
+        this.resumeFromRun = resumeFromRun;
+        this.timeBetweenWebScriptInvocations = timeBetweenWebScriptInvocations;
+        this.batchSize = DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_BATCH_SIZE default} batch size for resumed invocations
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception {
+        long now = System.currentTimeMillis();
+        Integer fromRun = webScriptInvocationDataDAO.findRunId(resumeFromRun);
+        if (fromRun == null) {
+            return new EventResult("Test run " + resumeFromRun + " has no Web Script Invocations to resume.", false);
+        }
+        int runId = webScriptInvocationDataDAO.getRunId(testRunFqn);
+
+        // Carry on after the last invocation of the previous batch, on the same timeline
+        int lastSeq = -1;
+        long resumed = 0L;
+        long timelineStart = now;
+        DBObject progress = (DBObject) event.getData();
+        if (progress != null) {
+            lastSeq = ((Number) progress.get(FIELD_LAST_SEQ)).intValue();
+            resumed = ((Number) progress.get(FIELD_RESUMED)).longValue();
+            timelineStart = ((Number) progress.get(FIELD_TIMELINE_START)).longValue();
+        }
+
+        List<WebScriptInvocationData> batch =
+                webScriptInvocationDataDAO.findScheduledWebScriptInvocations(fromRun, lastSeq, runId, batchSize);
+        if (batch.isEmpty()) {
+            return new EventResult(createResultData(
+                    "Resumed " + resumed + " Web Script Invocations of test run " + resumeFromRun + ".", resumed),
+                    Collections.<Event>emptyList());
+        }
+
+        // Claim the batch before sending it, so it is never sent twice (at the cost of losing it on a crash)
+        List<Integer> seqs = new ArrayList<Integer>(batch.size());
+        for (WebScriptInvocationData data : batch) {
+            seqs.add(data.getSeq());
+        }
+        webScriptInvocationDataDAO.claimWebScriptInvocations(fromRun, seqs, runId);
+
+        List<Event> events = new ArrayList<Event>(batch.size() + 1);
+        long scheduled = timelineStart + resumed * timeBetweenWebScriptInvocations;
+        for (WebScriptInvocationData data : batch) {
+            scheduled = timelineStart + resumed * timeBetweenWebScriptInvocations;
+            events.add(new Event(EVENT_NAME_INVOKE_WEB_SCRIPT, scheduled, data.getKey()));
+            resumed++;
+        }
+        lastSeq = batch.get(batch.size() - 1).getSeq();
+
+        // A full batch may not be the last one
+        if (batch.size() == batchSize) {
+            DBObject nextProgress = BasicDBObjectBuilder
+                    .start(FIELD_LAST_SEQ, lastSeq)
+                    .add(FIELD_RESUMED, resumed)
+                    .add(FIELD_TIMELINE_START, timelineStart)
+                    .get();
+            events.add(new Event(event.getName(), scheduled, nextProgress));
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Resumed " + batch.size() + " Web Script Invocations of test run " + resumeFromRun +
+                    " up to sequence number " + lastSeq + ".");
+        }
+        return new EventResult(createResultData(
+                "Resumed " + resumed + " Web Script Invocations of test run " + resumeFromRun + ".", resumed), events);
+    }
+
+    private DBObject createResultData(String msg, long resumed) {
+        return BasicDBObjectBuilder
+                .start(ScheduleWebScriptInvocationsEventProcessor.RESULT_FIELD_MSG, msg)
+                .add(FIELD_RESUMED, resumed)
+                .get();
+    }
+}
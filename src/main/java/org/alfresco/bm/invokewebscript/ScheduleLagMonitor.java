@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps track, for the whole test run, of how far behind schedule Web Script invocations are started.
+ * <p/>
+ * The schedule lag is the time between when an invocation was scheduled to happen and when the driver actually
+ * made the call. A lag that keeps growing means the driver, or the server it is waiting on, cannot keep up with
+ * the schedule, and that response times measured only around the call would look better than they are.
+ * <p/>
+ * Besides the totals for the run, the highest lag of each of the last seconds is kept, so the recent lag can be
+ * told apart from the lag of invocations started long ago; a second in which nothing started has no lag.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class ScheduleLagMonitor {
+    private static Log logger = LogFactory.getLog(ScheduleLagMonitor.class);
+
+    public static final long DEFAULT_LATE_THRESHOLD_MS = 100L;
+
+    /**
+     * The number of seconds the recent lag is kept for
+     */
+    public static final int RECENT_SECONDS = 60;
+
+    /**
+     * Invocations started more than this (millisec) behind schedule count as late
+     */
+    private long lateThresholdMs;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong lateCount = new AtomicLong();
+    private final AtomicLong totalLagMs = new AtomicLong();
+    private final AtomicLong maxLagMs = new AtomicLong();
+    private volatile long lastLagMs;
+
+    /**
+     * The second, and the highest lag in it, of each slot of the recent seconds
+     */
+    private final AtomicLongArray recentSecond = new AtomicLongArray(RECENT_SECONDS);
+    private final AtomicLongArray recentMaxLagMs = new AtomicLongArray(RECENT_SECONDS);
+
+    public ScheduleLagMonitor() {
+        this.lateThresholdMs = DEFAULT_LATE_THRESHOLD_MS;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_LATE_THRESHOLD_MS default} lag after which an invocation counts as late
+     */
+    public void setLateThresholdMs(long lateThresholdMs) {
+        this.lateThresholdMs = lateThresholdMs;
+    }
+
+    /**
+     * Record the schedule lag of one invocation
+     *
+     * @param lagMs how long (millisec) after its scheduled time the invocation was started
+     */
+    public void record(long lagMs) {
+        count.incrementAndGet();
+        totalLagMs.addAndGet(lagMs);
+        lastLagMs = lagMs;
+        if (lagMs > lateThresholdMs) {
+            lateCount.incrementAndGet();
+        }
+        long max = maxLagMs.get();
+        while (lagMs > max && !maxLagMs.compareAndSet(max, lagMs)) {
+            max = maxLagMs.get();
+        }
+
+        // The first invocation of a new second takes over the slot of the second a minute ago
+        long second = System.currentTimeMillis() / 1000L;
+        int slot = (int) (second % RECENT_SECONDS);
+        long slotSecond = recentSecond.get(slot);
+        if (slotSecond != second && recentSecond.compareAndSet(slot, slotSecond, second)) {
+            recentMaxLagMs.set(slot, lagMs);
+            return;
+        }
+        long recentMax = recentMaxLagMs.get(slot);
+        while (lagMs > recentMax && !recentMaxLagMs.compareAndSet(slot, recentMax, lagMs)) {
+            recentMax = recentMaxLagMs.get(slot);
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getLateCount() {
+        return lateCount.get();
+    }
+
+    public long getAverageLagMs() {
+        long n = count.get();
+        return n == 0 ? 0L : totalLagMs.get() / n;
+    }
+
+    public long getMaxLagMs() {
+        return maxLagMs.get();
+    }
+
+    /**
+     * @param windowMs how far back (millisec) to look, up to {@link #RECENT_SECONDS}
+     * @return the highest lag of the invocations started within the window, 0 if none were
+     */
+    public long getRecentMaxLagMs(long windowMs) {
+        long now = System.currentTimeMillis() / 1000L;
+        long seconds = Math.min(RECENT_SECONDS, Math.max(1L, (windowMs + 999L) / 1000L));
+        long max = 0L;
+        for (int slot = 0; slot < RECENT_SECONDS; slot++) {
+            if (now - recentSecond.get(slot) < seconds) {
+                max = Math.max(max, recentMaxLagMs.get(slot));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the lag of the most recently started invocation
+     */
+    public long getLastLagMs() {
+        return lastLagMs;
+    }
+
+    /**
+     * Report the schedule lag for the run, called when the test stops
+     */
+    public void stop() {
+        if (count.get() > 0) {
+            logger.info("Schedule lag for " + count.get() + " Web Script Invocations: average " + getAverageLagMs() +
+                    " ms, max " + getMaxLagMs() + " ms, " + getLateCount() + " started more than " + lateThresholdMs +
+                    " ms late.");
+        }
+    }
+}
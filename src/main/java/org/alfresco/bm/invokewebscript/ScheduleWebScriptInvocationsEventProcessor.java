@@ -19,8 +19,8 @@
 package org.alfresco.bm.invokewebscript;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.UUID;
 
 import org.alfresco.bm.data.DataCreationState;
 import org.alfresco.bm.data.WebScriptInvocationData;
@@ -32,6 +32,9 @@ import org.alfresco.bm.user.UserDataService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+
 /**
  * Schedule a number of Alfresco Repo Web Script invocations (Hello World Web Script from AIO SDK Project).
  * This is done by writing batches of Web Script Invocation data objects to the Database (MongoDB).
@@ -49,12 +52,43 @@ import org.apache.commons.logging.LogFactory;
  * <p/>
  * <h1>Actions</h1>
  * <p/>
- * Scheduled up to a batch size after which this processor reschedules itself.
+ * Scheduled up to a batch size after which this processor reschedules itself. The invocations are spread along a
+ * timeline by an {@link ArrivalModel arrival model}; each rescheduled batch carries on from the exact position on
+ * the timeline where the previous batch stopped, so the schedule does not drift however long the test runs.
+ * With a {@link WebScriptWorkload workload} each invocation is assigned one of its operations, picked by weight.
+ * <p/>
+ * With an enabled {@link AdaptiveRateController} the rate is not decided by the arrival model but searched for:
+ * each batch asks the controller, whose state travels along with the rescheduled event, for the current rate.
+ * When the controller stops the search no further batches are scheduled.
+ * <p/>
+ * With enabled {@link SchedulingBackpressure backpressure} each batch first checks whether the drivers keep up
+ * with what was scheduled already. If they do not, the batch is delayed or shed instead; the shed invocations and
+ * the delays are counted in the data of the scheduling results.
+ * <p/>
+ * The scheduling can be split into {@link #setPartitions(int) partitions}: the first event then only starts one
+ * self-rescheduling chain per partition. The chains share the timeline and each one takes every N-th position on
+ * it, so they schedule side by side on whichever drivers pick them up, while every invocation keeps its place on
+ * the timeline and its message number.
+ * <p/>
+ * When {@link #setResumeFromRun(String) resuming} a test run that did not finish, no new invocations are scheduled:
+ * the first event hands over to the {@link ResumeWebScriptInvocationsEventProcessor}, which makes the invocations
+ * the other run left scheduled.
+ * <p/>
+ * With a {@link #setWarmUp(WarmUpWebScriptInvocationsEventProcessor) warm-up} that has invocations to make, the
+ * first event hands over to it instead, and the scheduling (or resuming) starts when the warm-up comes back.
  * <p/>
  * <h1>Output</h1>
  * <p/>
  * Scheduled up to 100:
- * {@link #EVENT_NAME_WEB_SCRIPT_INVOCATION}: The Web Script Invocation event name<br/>
+ * {@link #EVENT_NAME_WEB_SCRIPT_INVOCATION}: The Web Script Invocation key<br/>
+ * or, when {@link #setDirectInvocation(boolean) direct invocation} is on:
+ * {@link #EVENT_NAME_INVOKE_WEB_SCRIPT}: The full Web Script Invocation data<br/>
+ * or, when resuming:
+ * {@link #EVENT_NAME_RESUME_WEB_SCRIPT_INVOCATIONS}: No data<br/>
+ * or, when {@link #setSession(WebScriptSession) sessions} are enabled:
+ * {@link WebScriptSession#EVENT_NAME_INVOKE_WEB_SCRIPT_SESSION}: The full Web Script Invocation data and the first step<br/>
+ * or, when warming up:
+ * {@link #EVENT_NAME_WARM_UP_WEB_SCRIPT_INVOCATIONS}: No data<br/>
  *
  * @author martin.bergljung@alfresco.com
  * @since 2.0
@@ -64,6 +98,30 @@ public class ScheduleWebScriptInvocationsEventProcessor extends AbstractEventPro
 
     public static final int DEFAULT_BATCH_SIZE = 100;
     public static final String EVENT_NAME_WEB_SCRIPT_INVOCATION = "webScriptInvocation";
+    public static final String EVENT_NAME_INVOKE_WEB_SCRIPT = "invokeWebScript";
+    public static final String EVENT_NAME_RESUME_WEB_SCRIPT_INVOCATIONS = "resumeWebScriptInvocations";
+    public static final String EVENT_NAME_WARM_UP_WEB_SCRIPT_INVOCATIONS = "warmUpWebScriptInvocations";
+
+    /**
+     * Fields of the data carried by the rescheduled event
+     */
+    public static final String FIELD_SCHEDULED = "scheduled";
+    public static final String FIELD_TIMELINE_START = "timelineStart";
+    public static final String FIELD_TIMELINE_OFFSET = "timelineOffset";
+    public static final String FIELD_ADAPTIVE = "adaptive";
+    public static final String FIELD_SHED = "shed";
+    public static final String FIELD_DELAYS = "delays";
+    public static final String FIELD_DELAYED_MS = "delayedMs";
+    public static final String FIELD_PARTITION = "partition";
+
+    /**
+     * Fields of the result data
+     */
+    public static final String RESULT_FIELD_MSG = "msg";
+    public static final String RESULT_FIELD_SCHEDULED = "scheduled";
+    public static final String RESULT_FIELD_SHED = "shed";
+    public static final String RESULT_FIELD_DELAYS = "delays";
+    public static final String RESULT_FIELD_DELAYED_MS = "delayedMs";
 
     /**
      * User data service to get hold of usernames to use for Web Script invocation authentication.
@@ -88,9 +146,9 @@ public class ScheduleWebScriptInvocationsEventProcessor extends AbstractEventPro
     private long numberOfWebScriptInvocations;
 
     /**
-     * The delay (millisec) between each Web Script invocation.
+     * Decides the gaps between Web Script invocations, by default a fixed delay.
      */
-    private final long timeBetweenWebScriptInvocations;
+    private ArrivalModel arrivalModel;
 
     /**
      * A pattern for how the generated Web Script message parameter value should look like.
@@ -101,11 +159,22 @@ public class ScheduleWebScriptInvocationsEventProcessor extends AbstractEventPro
      */
     private String webScriptMessagePattern;
 
+    /**
+     * Optional feed of message parameter values, used instead of the message pattern
+     */
+    private MessageParameterFeed messageFeed;
+
     /**
      * The event name for a Web Script Invocation, will trigger an event processor that calls the Web Script.
      */
     private String eventNameWebScriptInvocation;
 
+    /**
+     * The event name used when Web Script invocations are sent straight to the event processor that calls the
+     * Web Script, without going through a redirect.
+     */
+    private String eventNameInvokeWebScript;
+
     /**
      * The number of Web Script invocations that should be scheduled in one go.
      * For example, if we should make in total 500 Web Script invocations, then we can
@@ -114,12 +183,71 @@ public class ScheduleWebScriptInvocationsEventProcessor extends AbstractEventPro
      */
     private int batchSize;
 
+    /**
+     * The number of scheduling chains working side by side, each taking every N-th position on the timeline
+     */
+    private int partitions;
+
+    /**
+     * Write each batch of Web Script invocations to MongoDB in a single unordered bulk insert,
+     * rather than one insert per invocation. Events are only emitted for the invocations that
+     * were actually stored.
+     */
+    private boolean bulkInsert;
+
+    /**
+     * Embed the full Web Script invocation data in each event and send it directly to the
+     * {@link #EVENT_NAME_INVOKE_WEB_SCRIPT invoking} event processor. This saves the invoking side a MongoDB lookup
+     * and the event queue a redirect per invocation.
+     */
+    private boolean directInvocation;
+
+    /**
+     * The name of the test run to resume instead of scheduling new invocations, if any
+     */
+    private String resumeFromRun;
+
+    /**
+     * Optional warm-up that runs before anything is scheduled, when it has any invocations to make
+     */
+    private WarmUpWebScriptInvocationsEventProcessor warmUp;
+
+    /**
+     * Optional steps of user sessions, when enabled each invocation starts a session
+     */
+    private WebScriptSession session;
+
+    /**
+     * Optional histograms of the time taken to schedule each batch and to store it
+     */
+    private LatencyRecorder latencyRecorder;
+
+    /**
+     * Optional mix of Web Script operations to pick from, when not available the default operation is called
+     */
+    private WebScriptWorkload workload;
+
+    /**
+     * Optional search for the highest rate within an SLA, overriding the arrival model when enabled
+     */
+    private AdaptiveRateController adaptiveRateController;
+
+    /**
+     * Optional check that the drivers keep up before another batch is scheduled
+     */
+    private SchedulingBackpressure backpressure;
+
+    /**
+     * Optional live metrics of the running test, counting the invocations scheduled by each batch
+     */
+    private LiveMetrics liveMetrics;
+
     /**
      * @param userDataService                 user service for fetching username etc (requires Sign-Up test to have been run)
      * @param webScriptInvocationDataDAO      the DAO for storing Web Script invocation data
      * @param testRunFqn                      the name of the test run
      * @param numberOfWebScriptInvocations    the number of Web Script invocations to execute in total
-     * @param timeBetweenWebScriptInvocations how long between each invocation
+     * @param timeBetweenWebScriptInvocations how long between each invocation, unless another arrival model is set
      * @param webScriptMessagePattern         a pattern for how the generated Web Script message parameter value should look like.
      */
     public ScheduleWebScriptInvocationsEventProcessor(UserDataService userDataService,
@@ -131,9 +259,13 @@ public class ScheduleWebScriptInvocationsEventProcessor extends AbstractEventPro
         this.webScriptInvocationDataDAO = webScriptInvocationDataDAO;
         this.testRunFqn = testRunFqn;
         this.numberOfWebScriptInvocations = numberOfWebScriptInvocations;
-        this.timeBetweenWebScriptInvocations = timeBetweenWebScriptInvocations;
+        this.arrivalModel = ArrivalModels.delay(timeBetweenWebScriptInvocations);
         this.batchSize = DEFAULT_BATCH_SIZE;
+        this.partitions = 1;
+        this.bulkInsert = false;
+        this.directInvocation = false;
         this.eventNameWebScriptInvocation = EVENT_NAME_WEB_SCRIPT_INVOCATION;
+        this.eventNameInvokeWebScript = EVENT_NAME_INVOKE_WEB_SCRIPT;
         this.webScriptMessagePattern = webScriptMessagePattern;
     }
 
@@ -144,14 +276,209 @@ public class ScheduleWebScriptInvocationsEventProcessor extends AbstractEventPro
         this.batchSize = batchSize;
     }
 
+    /**
+     * Split the scheduling into a number of chains that run side by side (default: 1)
+     */
+    public void setPartitions(int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("There must be at least one scheduling partition.");
+        }
+        this.partitions = partitions;
+    }
+
+    /**
+     * Override the fixed delay between invocations with another model of how invocations arrive
+     */
+    public void setArrivalModel(ArrivalModel arrivalModel) {
+        this.arrivalModel = arrivalModel;
+    }
+
+    /**
+     * Record the time taken to schedule each batch, and to store it, in histograms
+     */
+    public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+        this.latencyRecorder = latencyRecorder;
+    }
+
+    /**
+     * Pick the Web Script operation of each invocation from a weighted mix
+     */
+    public void setWorkload(WebScriptWorkload workload) {
+        this.workload = workload;
+    }
+
+    /**
+     * Draw the message of each invocation from a feed, if it is enabled, rather than from the message pattern
+     */
+    public void setMessageFeed(MessageParameterFeed messageFeed) {
+        this.messageFeed = messageFeed;
+    }
+
+    /**
+     * Let the rate be searched for, if the controller is enabled
+     */
+    public void setAdaptiveRateController(AdaptiveRateController adaptiveRateController) {
+        this.adaptiveRateController = adaptiveRateController;
+    }
+
+    /**
+     * Delay or shed batches while the drivers are not keeping up, if backpressure is enabled
+     */
+    public void setBackpressure(SchedulingBackpressure backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * Switch on bulk inserts of each batch of Web Script invocations (default: <tt>false</tt>)
+     */
+    public void setBulkInsert(boolean bulkInsert) {
+        this.bulkInsert = bulkInsert;
+    }
+
+    /**
+     * Switch on self-contained {@link #EVENT_NAME_INVOKE_WEB_SCRIPT} events carrying the whole invocation
+     * (default: <tt>false</tt>)
+     */
+    public void setDirectInvocation(boolean directInvocation) {
+        this.directInvocation = directInvocation;
+    }
+
+    /**
+     * Resume the test run with the given name instead of scheduling new invocations (default: empty, do not resume)
+     */
+    public void setResumeFromRun(String resumeFromRun) {
+        this.resumeFromRun = resumeFromRun;
+    }
+
+    /**
+     * Warm up before the first batch is scheduled, if the warm-up has any invocations to make
+     */
+    public void setWarmUp(WarmUpWebScriptInvocationsEventProcessor warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * Start a user session for each invocation, if sessions are enabled
+     */
+    public void setSession(WebScriptSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Count the invocations scheduled in the live metrics of the test, if they are enabled
+     */
+    public void setLiveMetrics(LiveMetrics liveMetrics) {
+        this.liveMetrics = liveMetrics;
+    }
+
     @Override
     public EventResult processEvent(Event event) throws Exception {
-        // Check how many Web Script invocations that have already been scheduled.
-        // This depends on the batchSize and the total number of invocations that should be made.
-        Integer alreadyScheduled = (Integer) event.getData();
-        if (alreadyScheduled == null) {
-            alreadyScheduled = Integer.valueOf(0);
+        long batchStart = System.nanoTime();
+
+        // Check how many positions on the timeline have already been passed, and where on the timeline
+        // the previous batch stopped. This depends on the batchSize and the total number of invocations that should be made.
+        long now = System.currentTimeMillis();
+        int partition = 0;
+        int alreadyScheduled = 0;
+        long timelineStart = now;
+        double timelineOffset = 0.0;
+        long shedCount = 0L;
+        long delayCount = 0L;
+        long delayedMs = 0L;
+        DBObject progress = (DBObject) event.getData();
+        if (progress == null && warmUp != null && warmUp.isEnabled()) {
+            // Warm up first, the warm-up comes back here when it is done
+            return new EventResult("Warming up before scheduling Web Script Invocations.",
+                    new Event(EVENT_NAME_WARM_UP_WEB_SCRIPT_INVOCATIONS, now, null));
+        }
+        if (progress != null && !progress.containsField(FIELD_SCHEDULED)) {
+            // Back from the warm-up, so start as if this was the first event
+            progress = null;
+        }
+        if (progress == null && resumeFromRun != null && resumeFromRun.trim().length() > 0) {
+            // Make what the other run left scheduled rather than anything new
+            return new EventResult("Resuming the Web Script Invocations of test run " + resumeFromRun + ".",
+                    new Event(EVENT_NAME_RESUME_WEB_SCRIPT_INVOCATIONS, now, null));
+        }
+        if (progress == null && partitions > 1) {
+            // Start one scheduling chain per partition, all on the same timeline
+            List<Event> events = new ArrayList<Event>(partitions);
+            for (int i = 0; i < partitions; i++) {
+                events.add(new Event(event.getName(), now, createProgress(i, 0, now, 0.0, null, 0L, 0L, 0L)));
+            }
+            return new EventResult("Started " + partitions + " scheduling partitions.", events);
         }
+        if (progress != null) {
+            if (progress.containsField(FIELD_PARTITION)) {
+                partition = ((Number) progress.get(FIELD_PARTITION)).intValue();
+            }
+            alreadyScheduled = ((Number) progress.get(FIELD_SCHEDULED)).intValue();
+            timelineStart = ((Number) progress.get(FIELD_TIMELINE_START)).longValue();
+            timelineOffset = ((Number) progress.get(FIELD_TIMELINE_OFFSET)).doubleValue();
+            if (progress.containsField(FIELD_SHED)) {
+                shedCount = ((Number) progress.get(FIELD_SHED)).longValue();
+                delayCount = ((Number) progress.get(FIELD_DELAYS)).longValue();
+                delayedMs = ((Number) progress.get(FIELD_DELAYED_MS)).longValue();
+            }
+        }
+
+        // Let the adaptive search move on and pick the rate of this batch
+        DBObject adaptiveState = null;
+        if (adaptiveRateController != null && adaptiveRateController.isEnabled()) {
+            DBObject previousState = progress == null ? null : (DBObject) progress.get(FIELD_ADAPTIVE);
+            adaptiveState = previousState == null ?
+                    adaptiveRateController.start(now) : adaptiveRateController.update(previousState, now);
+            if (adaptiveRateController.isStopped(adaptiveState)) {
+                return new EventResult("Adaptive rate search stopped after " + alreadyScheduled +
+                        " Web Script Invocations, highest sustained rate " +
+                        adaptiveRateController.getBestRate(adaptiveState) + " invocations/sec.",
+                        Collections.<Event>emptyList());
+            }
+        }
+
+        // Hold back while the drivers are not keeping up with what was scheduled already
+        if (backpressure != null && backpressure.isEnabled()) {
+            long pendingEvents = backpressure.getPendingEvents();
+            String pressure = backpressure.getPressure(pendingEvents);
+            if (pressure != null) {
+                String msg;
+                if (backpressure.isShedding()) {
+                    // Skip over a batch of invocations on the timeline without making them
+                    int shed = 0;
+                    for (; shed < batchSize; shed++) {
+                        int position = getNextPosition(alreadyScheduled, partition);
+                        if (position >= numberOfWebScriptInvocations) {
+                            break;
+                        }
+                        while (alreadyScheduled <= position) {
+                            timelineOffset += getNextGapMs(timelineOffset, adaptiveState);
+                            alreadyScheduled++;
+                        }
+                    }
+                    shedCount += shed;
+                    msg = "Shed " + shed + " Web Script Invocations, " + pressure + ".";
+                } else {
+                    // Move the rest of the schedule back
+                    timelineStart += backpressure.getDelayMs();
+                    delayCount++;
+                    delayedMs += backpressure.getDelayMs();
+                    msg = "Delayed Web Script Invocations by " + backpressure.getDelayMs() + " ms, " + pressure + ".";
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug(msg);
+                }
+                List<Event> events = Collections.emptyList();
+                if (getNextPosition(alreadyScheduled, partition) < numberOfWebScriptInvocations) {
+                    events = Collections.singletonList(new Event(event.getName(),
+                            Math.max(now, timelineStart + (long) timelineOffset),
+                            createProgress(partition, alreadyScheduled, timelineStart, timelineOffset, adaptiveState,
+                                    shedCount, delayCount, delayedMs)));
+                }
+                return new EventResult(
+                        createResultData(msg, alreadyScheduled, shedCount, delayCount, delayedMs), events);
+            }
+        }
+
         if (logger.isDebugEnabled()) {
             logger.debug("Already scheduled " + alreadyScheduled + " " + eventNameWebScriptInvocation +
                     " events and will schedule up to " + batchSize + " more.");
@@ -159,54 +486,194 @@ public class ScheduleWebScriptInvocationsEventProcessor extends AbstractEventPro
 
         // Schedule another batch of Web Script Invocation events
         List<Event> events = new ArrayList<Event>(batchSize + 1);
-        long now = System.currentTimeMillis();
-        long scheduled = now;
+        long scheduled = timelineStart + (long) timelineOffset;
         int localCount = 0;
-        int totalCount = (int) alreadyScheduled;
-        for (int i = 0; i < batchSize && totalCount < numberOfWebScriptInvocations; i++) {
-            // Create a unique name for this Web Script invocation and store it under this name in the MongoDB
-            String webScriptInvocationName = testRunFqn + "-" + UUID.randomUUID();
+        int totalCount = alreadyScheduled;
+        int runId = webScriptInvocationDataDAO.getRunId(testRunFqn);
+        List<WebScriptInvocationData> batch = new ArrayList<WebScriptInvocationData>(batchSize);
+        List<Long> batchScheduled = new ArrayList<Long>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            // Find the next position on the timeline that belongs to this partition
+            int position = getNextPosition(totalCount, partition);
+            if (position >= numberOfWebScriptInvocations) {
+                break;
+            }
 
-            // Delay the invocation with specified time
-            scheduled += timeBetweenWebScriptInvocations;
+            // Move along the timeline to when this invocation should happen, past those of the other partitions
+            while (totalCount <= position) {
+                timelineOffset += getNextGapMs(timelineOffset, adaptiveState);
+                totalCount++;
+            }
+            scheduled = timelineStart + (long) timelineOffset;
 
-            // Store this Web Script invocation as Scheduled
+            // Store this Web Script invocation as Scheduled, keyed by the run and its position on the timeline
             WebScriptInvocationData data = new WebScriptInvocationData();
-            data.setName(webScriptInvocationName);
-            String message = webScriptMessagePattern;
-            if (message.contains("%")) {
-                message = String.format(webScriptMessagePattern, totalCount);
+            data.setRun(runId);
+            data.setSeq(position);
+            if (messageFeed != null && messageFeed.isEnabled()) {
+                data.setMessage(messageFeed.next(position));
+                data.setMessageEncoded(true);
+            } else {
+                String message = webScriptMessagePattern;
+                if (message.contains("%")) {
+                    message = String.format(webScriptMessagePattern, position);
+                }
+                data.setMessage(message);
             }
-            data.setMessage(message);
             data.setUsername(userDataService.getRandomUser().getUsername());
             data.setState(DataCreationState.Scheduled);
-            webScriptInvocationDataDAO.createWebScriptInvocation(data);
+            data.setScheduled(scheduled);
+            if (workload != null) {
+                data.setOperation(workload.pick().getName());
+            }
+            if (bulkInsert) {
+                // Written together with the rest of the batch below
+                batch.add(data);
+                batchScheduled.add(scheduled);
+            } else {
+                webScriptInvocationDataDAO.createWebScriptInvocation(data);
 
-            // Attach Web Script Invocation name as the event data, so we can look up the event data from
-            // other Event Processors
-            Event webScriptInvocationEvent = new Event(eventNameWebScriptInvocation, scheduled, webScriptInvocationName);
+                // Add the Web Script Invocation event to the list of events scheduled
+                events.add(createWebScriptInvocationEvent(scheduled, data));
+                localCount++;
+            }
+        }
+
+        // Write the whole batch in one go, trying the documents that did not make it once more
+        int failedCount = 0;
+        if (bulkInsert && !batch.isEmpty()) {
+            long insertStart = System.nanoTime();
+            List<WebScriptInvocationData> created = webScriptInvocationDataDAO.createWebScriptInvocations(batch);
+            long insertTime = System.nanoTime() - insertStart;
+            if (latencyRecorder != null) {
+                latencyRecorder.recordNanos(event.getName(), LatencyRecorder.METRIC_INSERT, insertTime);
+            }
+            failedCount = batch.size() - created.size();
+            if (failedCount > 0) {
+                List<WebScriptInvocationData> failed = new ArrayList<WebScriptInvocationData>(batch);
+                failed.removeAll(created);
+                failedCount -= webScriptInvocationDataDAO.createWebScriptInvocations(failed).size();
+            }
 
-            // Add the Web Script Invocation event to the list of events scheduled
-            events.add(webScriptInvocationEvent);
-            localCount++;
-            totalCount++;
+            // Schedule every invocation, stored or not, as one at a time did: the event of one that is still not
+            // stored ends in a failed result, as its data or its state update is missing, so it is still counted
+            // and the run can complete
+            for (int i = 0; i < batch.size(); i++) {
+                events.add(createWebScriptInvocationEvent(batchScheduled.get(i), batch.get(i)));
+                localCount++;
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Bulk inserted " + (batch.size() - failedCount) + " of " + batch.size() +
+                        " Web Script Invocations in " + (insertTime / 1000000L) + " ms (" +
+                        (long) (batch.size() * 1E9 / Math.max(insertTime, 1L)) + " inserts/sec).");
+            }
         }
 
         // If we have not yet scheduled all the Web Script Invocations that we want to do, then reschedule this event
-        if (totalCount < numberOfWebScriptInvocations) {
-            Event rescheduleEvent = new Event(event.getName(), scheduled, Integer.valueOf(totalCount));
+        boolean reschedule = getNextPosition(totalCount, partition) < numberOfWebScriptInvocations;
+        if (reschedule) {
+            DBObject nextProgress = createProgress(partition, totalCount, timelineStart, timelineOffset, adaptiveState,
+                    shedCount, delayCount, delayedMs);
+            Event rescheduleEvent = new Event(event.getName(), scheduled, nextProgress);
             events.add(rescheduleEvent);
         }
 
         // The ResultBarrier will ensure that this gets rescheduled, if necessary
-        EventResult result = new EventResult("Created " + totalCount + " scheduled Web Script Invocations.", events);
+        String msg = "Created " + totalCount + " scheduled Web Script Invocations.";
+        if (partitions > 1) {
+            msg = "Passed " + totalCount + " scheduled Web Script Invocations in partition " + (partition + 1) + " of " +
+                    partitions + ".";
+        }
+        if (failedCount > 0) {
+            msg += " Failed to store " + failedCount + " of them, their invocations will fail.";
+        }
+        if (adaptiveState != null) {
+            msg += " Adaptive rate " + adaptiveRateController.getRate(adaptiveState) +
+                    " invocations/sec, highest sustained " + adaptiveRateController.getBestRate(adaptiveState) + ".";
+        }
+        EventResult result = new EventResult(
+                createResultData(msg, totalCount, shedCount, delayCount, delayedMs), events);
+        if (latencyRecorder != null) {
+            latencyRecorder.recordNanos(event.getName(), LatencyRecorder.METRIC_SERVICE, System.nanoTime() - batchStart);
+        }
+        if (liveMetrics != null) {
+            liveMetrics.recordBatch(event.getName(), localCount, (System.nanoTime() - batchStart) / 1000000L);
+        }
 
         // Done
         if (logger.isDebugEnabled()) {
-            logger.debug("Scheduled " + localCount + " Web Script Invocations and " + (totalCount < numberOfWebScriptInvocations ?
+            logger.debug("Scheduled " + localCount + " Web Script Invocations and " + (reschedule ?
                     "rescheduled" : "did not reschedule") + " self.");
         }
 
         return result;
     }
+
+    /**
+     * @return the gap to the next invocation, decided by the adaptive search if there is one
+     */
+    private double getNextGapMs(double timelineOffset, DBObject adaptiveState) {
+        return adaptiveState == null ?
+                arrivalModel.getNextGapMs(timelineOffset) : 1000.0 / adaptiveRateController.getRate(adaptiveState);
+    }
+
+    /**
+     * @return the first position on the timeline, from the given one on, that belongs to the partition
+     */
+    private int getNextPosition(int position, int partition) {
+        return position + ((partition - position % partitions) + partitions) % partitions;
+    }
+
+    /**
+     * The data of the rescheduled event: the partition, how far the scheduling got and where on the timeline
+     * it stopped
+     */
+    private DBObject createProgress(int partition, int scheduled, long timelineStart, double timelineOffset,
+                                    DBObject adaptiveState, long shedCount, long delayCount, long delayedMs) {
+        return BasicDBObjectBuilder
+                .start(FIELD_PARTITION, partition)
+                .add(FIELD_SCHEDULED, scheduled)
+                .add(FIELD_TIMELINE_START, timelineStart)
+                .add(FIELD_TIMELINE_OFFSET, timelineOffset)
+                .add(FIELD_ADAPTIVE, adaptiveState)
+                .add(FIELD_SHED, shedCount)
+                .add(FIELD_DELAYS, delayCount)
+                .add(FIELD_DELAYED_MS, delayedMs)
+                .get();
+    }
+
+    /**
+     * Result data with the running totals of scheduled, shed and delayed work
+     */
+    private DBObject createResultData(String msg, int scheduled, long shedCount, long delayCount, long delayedMs) {
+        return BasicDBObjectBuilder
+                .start(RESULT_FIELD_MSG, msg)
+                .add(RESULT_FIELD_SCHEDULED, scheduled)
+                .add(RESULT_FIELD_SHED, shedCount)
+                .add(RESULT_FIELD_DELAYS, delayCount)
+                .add(RESULT_FIELD_DELAYED_MS, delayedMs)
+                .get();
+    }
+
+    /**
+     * Create the event that will trigger the call of the Web Script for an invocation
+     *
+     * @param scheduled the time the invocation should happen
+     * @param data      the stored Web Script invocation
+     */
+    private Event createWebScriptInvocationEvent(long scheduled, WebScriptInvocationData data) {
+        if (session != null && session.isEnabled()) {
+            // The first step of a session, which passes the session on to the next steps itself
+            return new Event(WebScriptSession.EVENT_NAME_INVOKE_WEB_SCRIPT_SESSION, scheduled,
+                    WebScriptSession.createStepData(data, 0, null, scheduled, 0L));
+        } else if (directInvocation) {
+            // Carry the whole invocation so the invoking processor does not have to look it up again
+            return new Event(eventNameInvokeWebScript, scheduled, WebScriptInvocationDataDAO.toDBObject(data));
+        } else {
+            // Attach Web Script Invocation key as the event data, so we can look up the event data from
+            // other Event Processors
+            return new Event(eventNameWebScriptInvocation, scheduled, data.getKey());
+        }
+    }
 }
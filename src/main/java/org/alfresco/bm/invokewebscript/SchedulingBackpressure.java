@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.List;
+
+import org.alfresco.bm.event.EventRecord;
+import org.alfresco.bm.event.EventService;
+import org.alfresco.bm.event.ResultService;
+
+import com.mongodb.DBObject;
+
+/**
+ * Tells the scheduler when the drivers are not keeping up, so it stops adding to the backlog.
+ * <p/>
+ * There is pressure when more events are waiting in the event queue than the high-water mark, or when Web Script
+ * invocations started within the recent lag window were started further behind schedule than allowed. The scheduler
+ * then either <b>delays</b> the next batch, moving the rest of the schedule back, or <b>sheds</b> it, skipping over
+ * its invocations without making them.
+ * <p/>
+ * The schedule lag is taken from the results of the invocations of all drivers that started within the window, as
+ * well as from the {@link ScheduleLagMonitor} of this driver for those whose results are not in yet or carry no
+ * data. Only recent invocations count, so once the scheduler holds back and nothing late is started any more, the
+ * pressure clears by itself.
+ * <p/>
+ * Shed invocations are never made, so they never have results: a run that sheds cannot reach the number of
+ * invocations the completion estimator counts, and finishes on its elapsed time instead.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class SchedulingBackpressure {
+    public static final String POLICY_DELAY = "delay";
+    public static final String POLICY_SHED = "shed";
+
+    public static final long DEFAULT_LAG_WINDOW_MS = 10000L;
+
+    /**
+     * The most results read back to find the lag within the window
+     */
+    private static final int MAX_RESULTS = 1000;
+
+    /**
+     * The narrowest window read back when the results of the whole window do not fit in one read
+     */
+    private static final long MIN_READ_WINDOW_MS = 100L;
+
+    private final EventService eventService;
+    private final ResultService resultService;
+    private final String eventName;
+    private final ScheduleLagMonitor scheduleLagMonitor;
+
+    private boolean enabled;
+    private long lagWindowMs;
+    private long highWaterMark;
+    private long maxScheduleLagMs;
+    private String policy;
+    private long delayMs;
+
+    /**
+     * @param eventService       the queue of events still to be processed
+     * @param resultService      the results of the test run, for the schedule lag on all drivers
+     * @param eventName          the name of the events whose results carry the schedule lag of the invocations
+     * @param scheduleLagMonitor keeps track of how far behind schedule invocations are started on this driver
+     */
+    public SchedulingBackpressure(EventService eventService, ResultService resultService, String eventName,
+                                  ScheduleLagMonitor scheduleLagMonitor) {
+        this.eventService = eventService;
+        this.resultService = resultService;
+        this.eventName = eventName;
+        this.scheduleLagMonitor = scheduleLagMonitor;
+        this.enabled = false;
+        this.lagWindowMs = DEFAULT_LAG_WINDOW_MS;
+        this.highWaterMark = 10000L;
+        this.maxScheduleLagMs = 0L;
+        this.policy = POLICY_DELAY;
+        this.delayMs = 1000L;
+    }
+
+    /**
+     * Switch on backpressure (default: <tt>false</tt>)
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The number of events waiting in the queue above which no more invocations are scheduled
+     */
+    public void setHighWaterMark(long highWaterMark) {
+        this.highWaterMark = highWaterMark;
+    }
+
+    /**
+     * How far (millisec) behind schedule invocations can be started, 0 to not check the schedule lag
+     */
+    public void setMaxScheduleLagMs(long maxScheduleLagMs) {
+        this.maxScheduleLagMs = maxScheduleLagMs;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_LAG_WINDOW_MS default} time (millisec) back from now within which invocations
+     * have to have started for their schedule lag to count
+     */
+    public void setLagWindowMs(long lagWindowMs) {
+        this.lagWindowMs = lagWindowMs;
+    }
+
+    /**
+     * What to do under pressure: {@link #POLICY_DELAY} or {@link #POLICY_SHED}
+     */
+    public void setPolicy(String policy) {
+        if (!POLICY_DELAY.equals(policy) && !POLICY_SHED.equals(policy)) {
+            throw new IllegalArgumentException("Unknown backpressure policy '" + policy + "'.");
+        }
+        this.policy = policy;
+    }
+
+    /**
+     * How long (millisec) to hold back a batch when delaying
+     */
+    public void setDelayMs(long delayMs) {
+        this.delayMs = delayMs;
+    }
+
+    public boolean isShedding() {
+        return POLICY_SHED.equals(policy);
+    }
+
+    public long getDelayMs() {
+        return delayMs;
+    }
+
+    /**
+     * @return the number of events waiting in the queue
+     */
+    public long getPendingEvents() {
+        return eventService.count();
+    }
+
+    /**
+     * @param pendingEvents the number of events waiting in the queue
+     * @return why the drivers are not keeping up, or <tt>null</tt> if they are
+     */
+    public String getPressure(long pendingEvents) {
+        if (pendingEvents > highWaterMark) {
+            return pendingEvents + " events pending, above the high-water mark of " + highWaterMark;
+        }
+        if (maxScheduleLagMs <= 0L) {
+            return null;
+        }
+        long lagMs = getRecentMaxLagMs();
+        if (lagMs > maxScheduleLagMs) {
+            return "invocations started up to " + lagMs + " ms behind schedule in the last " + lagWindowMs +
+                    " ms, more than " + maxScheduleLagMs + " ms";
+        }
+        return null;
+    }
+
+    /**
+     * The results come oldest first, so a read that is full misses the newest ones; the window read is then halved
+     * until the newest results fit, taking the highest lag of every read.
+     *
+     * @return the highest schedule lag of the invocations started within the window, on any driver
+     */
+    private long getRecentMaxLagMs() {
+        long lagMs = scheduleLagMonitor.getRecentMaxLagMs(lagWindowMs);
+        long now = System.currentTimeMillis();
+        long readWindowMs = lagWindowMs;
+        while (true) {
+            List<EventRecord> results = resultService.getResults(now - readWindowMs, eventName, null, 0, MAX_RESULTS);
+            lagMs = Math.max(lagMs, getMaxLagMs(results));
+            if (results.size() < MAX_RESULTS || readWindowMs <= MIN_READ_WINDOW_MS) {
+                return lagMs;
+            }
+            readWindowMs = Math.max(MIN_READ_WINDOW_MS, readWindowMs / 2L);
+        }
+    }
+
+    private static long getMaxLagMs(List<EventRecord> results) {
+        long lagMs = 0L;
+        for (EventRecord result : results) {
+            Object data = result.getData();
+            if (data instanceof DBObject) {
+                Object lag = ((DBObject) data).get(InvokeWebScriptEventProcessor.RESULT_FIELD_SCHEDULE_LAG);
+                if (lag instanceof Number) {
+                    lagMs = Math.max(lagMs, ((Number) lag).longValue());
+                }
+            }
+        }
+        return lagMs;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded stand-in for the Alfresco server, used to calibrate the driver.
+ * <p/>
+ * Every Web Script call is answered with a 200 and a body of a fixed size, after a response delay that is
+ * <b>fixed</b>, <b>uniform</b> between 0 and twice the delay, or <b>exponential</b> with the delay as mean.
+ * With no delay the server is as fast as it gets, so the rate the driver reaches against it is the ceiling of
+ * the driver itself. Logins (<tt>/api/login</tt>) are answered with a ticket, so ticket authentication works too.
+ * <p/>
+ * When enabled the server listens on the loopback interface and {@link #resolveUrl(String)} hands out its URL in
+ * place of the Alfresco URL.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class StubWebScriptServer {
+    private static Log logger = LogFactory.getLog(StubWebScriptServer.class);
+
+    public static final String DELAY_FIXED = "fixed";
+    public static final String DELAY_UNIFORM = "uniform";
+    public static final String DELAY_EXPONENTIAL = "exponential";
+
+    public static final int DEFAULT_THREADS = 64;
+    public static final int DEFAULT_BODY_SIZE = 64;
+
+    private static final String LOGIN_PATH = "/alfresco/service/api/login";
+    private static final byte[] LOGIN_RESPONSE = "{\"data\":{\"ticket\":\"TICKET_stub\"}}".getBytes();
+
+    private boolean enabled;
+    private int port;
+    private int threads;
+    private String delayModel;
+    private long delayMs;
+    private int bodySize;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private byte[] body;
+
+    private final AtomicLong servedCount = new AtomicLong();
+
+    public StubWebScriptServer() {
+        this.enabled = false;
+        this.port = 0;
+        this.threads = DEFAULT_THREADS;
+        this.delayModel = DELAY_FIXED;
+        this.delayMs = 0L;
+        this.bodySize = DEFAULT_BODY_SIZE;
+    }
+
+    /**
+     * Switch on the stub server (default: <tt>false</tt>), when off it is not started
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The port to listen on (default: 0 for any free port)
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_THREADS default} number of threads answering calls, which limits how many
+     * delayed responses can be pending at once
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * How the response delay varies: {@link #DELAY_FIXED}, {@link #DELAY_UNIFORM} or {@link #DELAY_EXPONENTIAL}
+     */
+    public void setDelayModel(String delayModel) {
+        this.delayModel = delayModel;
+    }
+
+    /**
+     * The (mean) response delay (default: 0)
+     */
+    public void setDelayMs(long delayMs) {
+        this.delayMs = delayMs;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_BODY_SIZE default} size of the response body in bytes
+     */
+    public void setBodySize(int bodySize) {
+        this.bodySize = bodySize;
+    }
+
+    public synchronized void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (!Arrays.asList(DELAY_FIXED, DELAY_UNIFORM, DELAY_EXPONENTIAL).contains(delayModel)) {
+            throw new IllegalArgumentException("Unknown stub server delay model '" + delayModel + "'.");
+        }
+        body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange);
+            }
+        });
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StubWebScriptServer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Stub Web Script server listening on " + getUrl() + " with " + delayModel + " delay of " +
+                delayMs + " ms and " + bodySize + " byte responses.");
+    }
+
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        logger.info("Stub Web Script server answered " + servedCount.get() + " calls.");
+    }
+
+    /**
+     * @return the URL of the stub server
+     */
+    public synchronized String getUrl() {
+        if (server == null) {
+            throw new IllegalStateException("The stub Web Script server is not running.");
+        }
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @param alfrescoUrl the URL of the Alfresco server
+     * @return the URL of the stub server if it is enabled, otherwise the Alfresco URL
+     */
+    public String resolveUrl(String alfrescoUrl) {
+        return enabled ? getUrl() : alfrescoUrl;
+    }
+
+    /**
+     * @return the number of calls answered so far
+     */
+    public long getServedCount() {
+        return servedCount.get();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        try {
+            // Read the request fully so the connection can be kept alive
+            InputStream is = exchange.getRequestBody();
+            byte[] discard = new byte[1024];
+            while (is.read(discard) >= 0) {
+                // Nothing to do with the request body
+            }
+            is.close();
+
+            long delay = nextDelayMs();
+            if (delay > 0L) {
+                Thread.sleep(delay);
+            }
+
+            byte[] response = exchange.getRequestURI().getPath().startsWith(LOGIN_PATH) ? LOGIN_RESPONSE : body;
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response);
+            os.close();
+            servedCount.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private long nextDelayMs() {
+        if (delayMs <= 0L) {
+            return 0L;
+        } else if (DELAY_UNIFORM.equals(delayModel)) {
+            return ThreadLocalRandom.current().nextLong(2L * delayMs + 1L);
+        } else if (DELAY_EXPONENTIAL.equals(delayModel)) {
+            return (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * delayMs);
+        }
+        return delayMs;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.bm.data.DataCreationState;
+import org.alfresco.bm.data.WebScriptInvocationData;
+import org.alfresco.bm.data.WebScriptInvocationDataDAO;
+import org.alfresco.bm.event.AbstractEventProcessor;
+import org.alfresco.bm.event.Event;
+import org.alfresco.bm.event.EventResult;
+import org.alfresco.bm.user.UserDataService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+
+/**
+ * Warm up the drivers and Alfresco before the Web Script (WS) invocations that are measured are scheduled.
+ * <p/>
+ * <h1>Input</h1>
+ * <p/>
+ * No data on the first event, how far the warm-up got on the rescheduled ones.
+ * <p/>
+ * <h1>Data</h1>
+ * <p/>
+ * None, warm-up invocations are not stored in the Web Script Invocation mirror.
+ * <p/>
+ * <h1>Actions</h1>
+ * <p/>
+ * Makes a set number of invocations, or as many as fit in a set time, a batch at a time and spaced by the time
+ * between invocations. Each one is made up like a real invocation, with a random user, a message and an operation
+ * of the workload, but is keyed with a negative sequence number and sent as a self-contained
+ * {@link #EVENT_NAME_INVOKE_WEB_SCRIPT_WARM_UP} event. The processor of that event makes the call without touching
+ * the mirror, so the connections, the JIT compiled code of the driver and the caches of Alfresco are warm by the time
+ * the measured invocations start, while the warm-up calls are charted under their own name and left out of the
+ * completion estimate, which only counts {@link ScheduleWebScriptInvocationsEventProcessor#EVENT_NAME_INVOKE_WEB_SCRIPT}
+ * events. When all warm-up invocations are sent, the scheduling of the measured ones starts after the last of them.
+ * <p/>
+ * <h1>Output</h1>
+ * <p/>
+ * Warmed up to 100:
+ * {@link #EVENT_NAME_INVOKE_WEB_SCRIPT_WARM_UP}: The full Web Script Invocation data<br/>
+ * Done: {@link #EVENT_NAME_SCHEDULE_WEB_SCRIPT_INVOCATIONS}: The number of warm-up invocations<br/>
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class WarmUpWebScriptInvocationsEventProcessor extends AbstractEventProcessor {
+    private static Log logger = LogFactory.getLog(WarmUpWebScriptInvocationsEventProcessor.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final String EVENT_NAME_INVOKE_WEB_SCRIPT_WARM_UP = "invokeWebScriptWarmUp";
+    public static final String EVENT_NAME_SCHEDULE_WEB_SCRIPT_INVOCATIONS = "scheduleWebScriptInvocations";
+
+    /**
+     * Fields of the data carried by the rescheduled event, and by the event that starts the scheduling
+     */
+    public static final String FIELD_WARMED_UP = "warmedUp";
+    public static final String FIELD_TIMELINE_START = "timelineStart";
+
+    /**
+     * User data service to get hold of usernames to use for Web Script invocation authentication.
+     */
+    private final UserDataService userDataService;
+
+    /**
+     * Web Script Invocation data access object, only used for the number of the run
+     */
+    private final WebScriptInvocationDataDAO webScriptInvocationDataDAO;
+
+    /**
+     * Fully qualified Name (FQN) for the active Test Run
+     */
+    private final String testRunFqn;
+
+    /**
+     * Time between each warm-up invocation.
+     */
+    private final long timeBetweenWebScriptInvocations;
+
+    /**
+     * A pattern for how the generated Web Script message parameter value should look like.
+     */
+    private final String webScriptMessagePattern;
+
+    private int invocations;
+    private int seconds;
+    private int batchSize;
+
+    /**
+     * Optional mix of Web Script operations to pick from, when not available the default operation is called
+     */
+    private WebScriptWorkload workload;
+
+    /**
+     * Optional feed of message parameter values, used instead of the message pattern
+     */
+    private MessageParameterFeed messageFeed;
+
+    /**
+     * @param userDataService                 user service for fetching username etc (requires Sign-Up test to have been run)
+     * @param webScriptInvocationDataDAO      the DAO that numbers the test runs
+     * @param testRunFqn                      the name of the test run
+     * @param timeBetweenWebScriptInvocations time in milliseconds between each warm-up invocation
+     * @param webScriptMessagePattern         a pattern for how the generated Web Script message parameter value should look like.
+     */
+    public WarmUpWebScriptInvocationsEventProcessor(UserDataService userDataService,
+                                                    WebScriptInvocationDataDAO webScriptInvocationDataDAO,
+                                                    String testRunFqn, long timeBetweenWebScriptInvocations,
+                                                    String webScriptMessagePattern) {
+        super();
+        this.userDataService = userDataService;
+        this.webScriptInvocationDataDAO = webScriptInvocationDataDAO;
+        this.testRunFqn = testRunFqn;
+        this.timeBetweenWebScriptInvocations = timeBetweenWebScriptInvocations;
+        this.webScriptMessagePattern = webScriptMessagePattern;
+        this.invocations = 0;
+        this.seconds = 0;
+        this.batchSize = DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * The number of warm-up invocations, 0 to go by the {@link #setSeconds(int) duration} instead (default: 0)
+     */
+    public void setInvocations(int invocations) {
+        this.invocations = invocations;
+    }
+
+    /**
+     * How long (seconds) to warm up for, when no number of invocations is set (default: 0)
+     */
+    public void setSeconds(int seconds) {
+        this.seconds = seconds;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_BATCH_SIZE default} batch size for warm-up invocations
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Pick the Web Script operation of each invocation from a weighted mix
+     */
+    public void setWorkload(WebScriptWorkload workload) {
+        this.workload = workload;
+    }
+
+    /**
+     * Draw the message of each invocation from a feed, if it is enabled, rather than from the message pattern
+     */
+    public void setMessageFeed(MessageParameterFeed messageFeed) {
+        this.messageFeed = messageFeed;
+    }
+
+    /**
+     * @return <tt>true</tt> if there is anything to warm up with
+     */
+    public boolean isEnabled() {
+        return getTotal() > 0;
+    }
+
+    /**
+     * @return the number of warm-up invocations, set directly or from the duration
+     */
+    private int getTotal() {
+        if (invocations > 0) {
+            return invocations;
+        }
+        if (seconds <= 0) {
+            return 0;
+        }
+        return (int) Math.max(1L, seconds * 1000L / Math.max(1L, timeBetweenWebScriptInvocations));
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception {
+        long now = System.currentTimeMillis();
+        int total = getTotal();
+
+        // Carry on where the previous batch stopped, on the same timeline
+        int warmedUp = 0;
+        long timelineStart = now;
+        DBObject progress = (DBObject) event.getData();
+        if (progress != null) {
+            warmedUp = ((Number) progress.get(FIELD_WARMED_UP)).intValue();
+            timelineStart = ((Number) progress.get(FIELD_TIMELINE_START)).longValue();
+        }
+
+        int runId = webScriptInvocationDataDAO.getRunId(testRunFqn);
+        List<Event> events = new ArrayList<Event>(batchSize + 1);
+        for (int i = 0; i < batchSize && warmedUp < total; i++) {
+            long scheduled = timelineStart + warmedUp * timeBetweenWebScriptInvocations;
+
+            // Negative sequence numbers keep warm-up invocations apart from the measured ones of the run
+            WebScriptInvocationData data = new WebScriptInvocationData();
+            data.setRun(runId);
+            data.setSeq(-1 - warmedUp);
+            if (messageFeed != null && messageFeed.isEnabled()) {
+                data.setMessage(messageFeed.next(warmedUp));
+                data.setMessageEncoded(true);
+            } else {
+                String message = webScriptMessagePattern;
+                if (message.contains("%")) {
+                    message = String.format(webScriptMessagePattern, warmedUp);
+                }
+                data.setMessage(message);
+            }
+            data.setUsername(userDataService.getRandomUser().getUsername());
+            data.setState(DataCreationState.Scheduled);
+            data.setScheduled(scheduled);
+            if (workload != null) {
+                data.setOperation(workload.pick().getName());
+            }
+            events.add(new Event(EVENT_NAME_INVOKE_WEB_SCRIPT_WARM_UP, scheduled,
+                    WebScriptInvocationDataDAO.toDBObject(data)));
+            warmedUp++;
+        }
+
+        // Either warm up some more, or start scheduling the measured invocations after the last warm-up one
+        long next = timelineStart + warmedUp * timeBetweenWebScriptInvocations;
+        String msg;
+        if (warmedUp < total) {
+            DBObject nextProgress = BasicDBObjectBuilder
+                    .start(FIELD_WARMED_UP, warmedUp)
+                    .add(FIELD_TIMELINE_START, timelineStart)
+                    .get();
+            events.add(new Event(event.getName(), next - timeBetweenWebScriptInvocations, nextProgress));
+            msg = "Sent " + warmedUp + " of " + total + " warm-up Web Script Invocations.";
+        } else {
+            DBObject warmUpDone = BasicDBObjectBuilder.start(FIELD_WARMED_UP, warmedUp).get();
+            events.add(new Event(EVENT_NAME_SCHEDULE_WEB_SCRIPT_INVOCATIONS, next, warmUpDone));
+            msg = "Sent all " + total + " warm-up Web Script Invocations, scheduling starts at " + next + ".";
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(msg);
+        }
+        return new EventResult(BasicDBObjectBuilder
+                .start(ScheduleWebScriptInvocationsEventProcessor.RESULT_FIELD_MSG, msg)
+                .add(FIELD_WARMED_UP, warmedUp)
+                .get(), events);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.Collections;
+
+import org.alfresco.bm.event.AbstractEventProcessor;
+import org.alfresco.bm.event.Event;
+import org.alfresco.bm.event.EventResult;
+
+import com.mongodb.DBObject;
+
+/**
+ * Record the outcome of a Web Script (WS) call made by the {@link AsyncWebScriptHttpEngine non-blocking engine}.
+ * <p/>
+ * <h1>Input</h1>
+ * <p/>
+ * The result data of the call, as put together on the engine's completion thread once the call completed: the
+ * service time, the response time from the scheduled time, the schedule lag, the operation and the status, with
+ * the key of the invocation and whether the call succeeded. Successful calls that are only kept as
+ * {@link AggregatedResultRecorder aggregates} just carry the key of the invocation.
+ * <p/>
+ * <h1>Data</h1>
+ * <p/>
+ * None, the invocation state is updated when the call completes.
+ * <p/>
+ * <h1>Actions</h1>
+ * <p/>
+ * Records the result of the call, failed if the call did, so the calls made without blocking are charted and
+ * counted like those made by the driver threads. A call that only carries its key gets a result without data, like
+ * the unsampled calls made by the driver threads. The time of this event itself is only the time to record it;
+ * the time of the call is in the result data.
+ * <p/>
+ * <h1>Output</h1>
+ * <p/>
+ * Succeeded: {@link InvokeWebScriptEventProcessor#EVENT_NAME_WEB_SCRIPT_INVOCATION_DONE}: The Web Script Invocation
+ * key<br/>
+ * Failed: None<br/>
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class WebScriptInvocationCompletedEventProcessor extends AbstractEventProcessor {
+    public static final String EVENT_NAME_WEB_SCRIPT_INVOCATION_COMPLETED = "invokeWebScriptCompleted";
+
+    /**
+     * Fields of the event data besides the result data
+     */
+    public static final String FIELD_KEY = "key";
+    public static final String FIELD_SUCCESS = "success";
+    public static final String FIELD_STATUS = "status";
+
+    /**
+     * Name of the event denoting WS Invocation is done
+     */
+    private String eventNameWebScriptInvocationDone;
+
+    public WebScriptInvocationCompletedEventProcessor() {
+        super();
+        this.eventNameWebScriptInvocationDone = InvokeWebScriptEventProcessor.EVENT_NAME_WEB_SCRIPT_INVOCATION_DONE;
+    }
+
+    @Override
+    public EventResult processEvent(Event event) throws Exception {
+        Object eventData = event.getData();
+        if (eventData instanceof Number) {
+            long webScriptInvocationKey = ((Number) eventData).longValue();
+            return new EventResult(null, new Event(eventNameWebScriptInvocationDone, 0L, webScriptInvocationKey));
+        }
+        DBObject resultData = (DBObject) eventData;
+        boolean success = Boolean.TRUE.equals(resultData.get(FIELD_SUCCESS));
+        if (!success) {
+            return new EventResult(resultData, Collections.<Event>emptyList(), false);
+        }
+        long webScriptInvocationKey = ((Number) resultData.get(FIELD_KEY)).longValue();
+        return new EventResult(resultData, new Event(eventNameWebScriptInvocationDone, 0L, webScriptInvocationKey));
+    }
+}
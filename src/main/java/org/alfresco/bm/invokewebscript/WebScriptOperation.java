@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.alfresco.bm.data.WebScriptInvocationData;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
+/**
+ * One Web Script operation of a {@link WebScriptWorkload workload}: how to call it and how often, relative to the
+ * other operations, it is picked.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class WebScriptOperation {
+    private final String name;
+    private final String method;
+    private final WebScriptTemplate pathTemplate;
+    private final Map<String, String> headers;
+    private final WebScriptTemplate bodyTemplate;
+    private final ContentType contentType;
+    private final int expectedStatus;
+    private final double weight;
+
+    /**
+     * @param name           the name of the operation, used in results and histograms
+     * @param method         the HTTP method: GET, POST, PUT, DELETE or HEAD
+     * @param pathTemplate   the path, relative to the Alfresco URL, with variables
+     * @param headers        request headers, may be <tt>null</tt>
+     * @param bodyTemplate   the request body with variables, only for POST and PUT, may be <tt>null</tt>
+     * @param contentType    the content type of the body, may be <tt>null</tt> for JSON
+     * @param expectedStatus the status code of a successful call, 0 for 200
+     * @param weight         how often the operation is picked, relative to the others
+     */
+    public WebScriptOperation(String name, String method, String pathTemplate, Map<String, String> headers,
+                              String bodyTemplate, String contentType, int expectedStatus, double weight) {
+        if (weight <= 0.0) {
+            throw new IllegalArgumentException("Web Script operation '" + name + "' needs a weight above 0.");
+        }
+        this.name = name;
+        this.method = method.toUpperCase();
+        this.pathTemplate = new WebScriptTemplate(pathTemplate, true);
+        this.headers = headers == null ?
+                Collections.<String, String>emptyMap() : new LinkedHashMap<String, String>(headers);
+        this.bodyTemplate = bodyTemplate == null ? null : new WebScriptTemplate(bodyTemplate, false);
+        this.contentType = contentType == null ? ContentType.APPLICATION_JSON : ContentType.parse(contentType);
+        this.expectedStatus = expectedStatus == 0 ? HttpStatus.SC_OK : expectedStatus;
+        this.weight = weight;
+
+        // Fail early rather than on the first call
+        createRequest("/");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getExpectedStatus() {
+        return expectedStatus;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the path, relative to the Alfresco URL, to call for the invocation
+     */
+    public String getPath(WebScriptInvocationData data) throws UnsupportedEncodingException {
+        return pathTemplate.render(data);
+    }
+
+    /**
+     * Create the request for an invocation
+     *
+     * @param url  the full URL to call, see {@link #getPath(WebScriptInvocationData)}
+     * @param data the Web Script invocation
+     */
+    public HttpRequestBase createRequest(String url, WebScriptInvocationData data) throws UnsupportedEncodingException {
+        HttpRequestBase request = createRequest(url);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.addHeader(header.getKey(), header.getValue());
+        }
+        if (bodyTemplate != null && request instanceof HttpEntityEnclosingRequestBase) {
+            ((HttpEntityEnclosingRequestBase) request).setEntity(
+                    new StringEntity(bodyTemplate.render(data), contentType));
+        }
+        return request;
+    }
+
+    private HttpRequestBase createRequest(String url) {
+        if ("GET".equals(method)) {
+            return new HttpGet(url);
+        } else if ("POST".equals(method)) {
+            return new HttpPost(url);
+        } else if ("PUT".equals(method)) {
+            return new HttpPut(url);
+        } else if ("DELETE".equals(method)) {
+            return new HttpDelete(url);
+        } else if ("HEAD".equals(method)) {
+            return new HttpHead(url);
+        }
+        throw new IllegalArgumentException("Web Script operation '" + name + "' has unsupported method " + method);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + method + " " + pathTemplate + ", weight " + weight + ")";
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.bm.data.WebScriptInvocationData;
+import org.alfresco.bm.data.WebScriptInvocationDataDAO;
+
+import com.mongodb.DBObject;
+
+/**
+ * The steps of a user session, for running Web Script invocations as sessions rather than as single calls.
+ * <p/>
+ * A session logs its user in once, calls the {@link WebScriptOperation operations} of the workload named as steps
+ * one after the other, with a think time in between, and logs out again. Every step is an event of its own, which
+ * carries the whole invocation together with the step it is at, the session's login ticket and when the session
+ * started, so nothing is looked up between steps.
+ * <p/>
+ * The calls of a session use the shared connection pool like any other call, leaving the connection state
+ * <tt>null</tt>. Tying a connection to a session, or to a slot of sessions, makes the pool close an idle connection
+ * of another state and open a new one inside the timed step whenever the session's own connection is busy, which
+ * costs more than it saves. Without a state every idle keep-alive connection can be reused, so a step only opens a
+ * connection when the whole pool is busy.
+ * <p/>
+ * Sessions are off unless steps are set.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class WebScriptSession {
+    public static final String EVENT_NAME_INVOKE_WEB_SCRIPT_SESSION = "invokeWebScriptSession";
+
+    /**
+     * The names the login, the logout and the whole session are recorded under, after the event name
+     */
+    public static final String LATENCY_NAME_LOGIN = "login";
+    public static final String LATENCY_NAME_LOGOUT = "logout";
+    public static final String LATENCY_NAME_SESSION = "session";
+
+    /**
+     * Fields of the session, added to the invocation data carried by each step's event
+     */
+    public static final String FIELD_STEP = "sessionStep";
+    public static final String FIELD_TICKET = "sessionTicket";
+    public static final String FIELD_START = "sessionStart";
+    public static final String FIELD_SERVICE_TIME = "sessionServiceTime";
+
+    private final WebScriptWorkload workload;
+
+    private List<WebScriptOperation> steps;
+    private long thinkTimeMs;
+
+    /**
+     * @param workload the operations the steps are taken from
+     */
+    public WebScriptSession(WebScriptWorkload workload) {
+        this.workload = workload;
+        this.steps = new ArrayList<WebScriptOperation>();
+        this.thinkTimeMs = 0L;
+    }
+
+    /**
+     * The comma-separated names of the workload operations each session calls, in order (default: empty, no sessions)
+     */
+    public void setSteps(String steps) {
+        List<WebScriptOperation> operations = new ArrayList<WebScriptOperation>();
+        for (String name : steps.split(",")) {
+            if (name.trim().length() == 0) {
+                continue;
+            }
+            WebScriptOperation operation = workload.getOperation(name.trim());
+            if (operation == null) {
+                throw new IllegalArgumentException(
+                        "Session step '" + name.trim() + "' is not an operation of the workload.");
+            }
+            operations.add(operation);
+        }
+        this.steps = operations;
+    }
+
+    /**
+     * The time (millisec) between the end of a step and the start of the next (default: 0)
+     */
+    public void setThinkTimeMs(long thinkTimeMs) {
+        this.thinkTimeMs = thinkTimeMs;
+    }
+
+    public boolean isEnabled() {
+        return !steps.isEmpty();
+    }
+
+    public int getStepCount() {
+        return steps.size();
+    }
+
+    public WebScriptOperation getStep(int step) {
+        return steps.get(step);
+    }
+
+    public long getThinkTimeMs() {
+        return thinkTimeMs;
+    }
+
+    /**
+     * @return the name the calls are counted under to know when the test is done
+     */
+    public String getEventName() {
+        return isEnabled() ?
+                EVENT_NAME_INVOKE_WEB_SCRIPT_SESSION : ScheduleWebScriptInvocationsEventProcessor.EVENT_NAME_INVOKE_WEB_SCRIPT;
+    }
+
+    /**
+     * @return the number of calls made for a number of invocations, one per step when they are sessions
+     */
+    public long getEventCount(long invocations) {
+        return isEnabled() ? invocations * steps.size() : invocations;
+    }
+
+    /**
+     * The data of the event for a step of the session
+     *
+     * @param data         the invocation the session is made for
+     * @param step         the step the event is for
+     * @param ticket       the login ticket of the session, <tt>null</tt> before the first step
+     * @param sessionStart when the session was scheduled to start
+     * @param serviceTime  the time (millisec) spent in the calls of the session so far
+     */
+    public static DBObject createStepData(
+            WebScriptInvocationData data, int step, String ticket, long sessionStart, long serviceTime) {
+        DBObject stepData = WebScriptInvocationDataDAO.toDBObject(data);
+        stepData.put(FIELD_STEP, step);
+        if (ticket != null) {
+            stepData.put(FIELD_TICKET, ticket);
+        }
+        stepData.put(FIELD_START, sessionStart);
+        stepData.put(FIELD_SERVICE_TIME, serviceTime);
+        return stepData;
+    }
+}
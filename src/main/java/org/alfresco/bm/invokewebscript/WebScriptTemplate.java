@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.bm.data.WebScriptInvocationData;
+
+/**
+ * A URL or request body template for a Web Script operation, with <tt>${variable}</tt> placeholders that are
+ * filled in from the Web Script invocation. The available variables are:
+ * <ul>
+ * <li><b>message</b>: the message of the invocation</li>
+ * <li><b>username</b>: the user making the call</li>
+ * <li><b>name</b>: the name of the invocation</li>
+ * </ul>
+ * The template is parsed once, into literal parts and variable references, so rendering is a single pass
+ * appending to a {@link StringBuilder}. URL templates encode the variable values, except for a message that is
+ * {@link WebScriptInvocationData#isMessageEncoded() encoded} already, which other templates decode instead.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class WebScriptTemplate {
+    public static final String VAR_MESSAGE = "message";
+    public static final String VAR_USERNAME = "username";
+    public static final String VAR_NAME = "name";
+
+    private static final int MESSAGE = 0;
+    private static final int USERNAME = 1;
+    private static final int NAME = 2;
+
+    private final String template;
+    private final boolean urlEncode;
+
+    /**
+     * The literal parts, with the variable after each part in {@link #variables}, or -1 after the last part
+     */
+    private final String[] literals;
+    private final int[] variables;
+    private final int literalLength;
+
+    /**
+     * @param template  the template text
+     * @param urlEncode <tt>true</tt> to URL encode the variable values
+     */
+    public WebScriptTemplate(String template, boolean urlEncode) {
+        this.template = template;
+        this.urlEncode = urlEncode;
+
+        List<String> literalList = new ArrayList<String>();
+        List<Integer> variableList = new ArrayList<Integer>();
+        int length = 0;
+        int pos = 0;
+        while (true) {
+            int start = template.indexOf("${", pos);
+            if (start < 0) {
+                literalList.add(template.substring(pos));
+                variableList.add(-1);
+                length += template.length() - pos;
+                break;
+            }
+            int end = template.indexOf('}', start);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated variable in template '" + template + "'.");
+            }
+            literalList.add(template.substring(pos, start));
+            variableList.add(toVariable(template.substring(start + 2, end)));
+            length += start - pos;
+            pos = end + 1;
+        }
+        this.literals = literalList.toArray(new String[literalList.size()]);
+        this.variables = new int[variableList.size()];
+        for (int i = 0; i < variables.length; i++) {
+            variables[i] = variableList.get(i);
+        }
+        this.literalLength = length;
+    }
+
+    private static int toVariable(String variable) {
+        if (VAR_MESSAGE.equals(variable)) {
+            return MESSAGE;
+        } else if (VAR_USERNAME.equals(variable)) {
+            return USERNAME;
+        } else if (VAR_NAME.equals(variable)) {
+            return NAME;
+        }
+        throw new IllegalArgumentException("Unknown template variable '" + variable + "'.");
+    }
+
+    /**
+     * Fill in the template for a Web Script invocation
+     */
+    public String render(WebScriptInvocationData data) throws UnsupportedEncodingException {
+        if (literals.length == 1) {
+            return literals[0];
+        }
+        StringBuilder sb = new StringBuilder(literalLength + 32);
+        for (int i = 0; i < literals.length; i++) {
+            sb.append(literals[i]);
+            switch (variables[i]) {
+                case MESSAGE:
+                    if (data.isMessageEncoded() && data.getMessage() != null) {
+                        sb.append(urlEncode ? data.getMessage() : URLDecoder.decode(data.getMessage(), "UTF-8"));
+                    } else {
+                        append(sb, data.getMessage());
+                    }
+                    break;
+                case USERNAME:
+                    append(sb, data.getUsername());
+                    break;
+                case NAME:
+                    append(sb, data.getName());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private void append(StringBuilder sb, String value) throws UnsupportedEncodingException {
+        if (value == null) {
+            return;
+        }
+        sb.append(urlEncode ? URLEncoder.encode(value, "UTF-8") : value);
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * A weighted mix of {@link WebScriptOperation Web Script operations}.
+ * <p/>
+ * The workload is a JSON array of operations, loaded once when the test starts:
+ * <pre>
+ * [
+ *   { "name": "helloWorld", "method": "GET", "url": "/alfresco/service/sample/helloworld?message=${message}",
+ *     "headers": { "Accept": "text/html" }, "expectedStatus": 200, "weight": 8 },
+ *   { "name": "createComment", "method": "POST", "url": "/alfresco/service/api/...",
+ *     "body": "{\"content\": \"${message}\"}", "contentType": "application/json", "expectedStatus": 200, "weight": 2 }
+ * ]
+ * </pre>
+ * Without a workload definition the single Hello World Web Script call is used.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class WebScriptWorkload {
+    private static Log logger = LogFactory.getLog(WebScriptWorkload.class);
+
+    public static final String DEFAULT_OPERATION_NAME = "helloWorld";
+
+    /**
+     * Hello World Web Script Service URL
+     */
+    public static final String HELLO_WORLD_WS_URL = "/alfresco/service/sample/helloworld?message=${message}";
+
+    private final WebScriptOperation[] operations;
+    private final Map<String, WebScriptOperation> operationsByName;
+
+    /**
+     * The running total of the weights, ending with the total weight
+     */
+    private final double[] cumulativeWeights;
+
+    public WebScriptWorkload(List<WebScriptOperation> operations) {
+        if (operations.isEmpty()) {
+            throw new IllegalArgumentException("A Web Script workload needs at least one operation.");
+        }
+        this.operations = operations.toArray(new WebScriptOperation[operations.size()]);
+        this.operationsByName = new HashMap<String, WebScriptOperation>();
+        this.cumulativeWeights = new double[operations.size()];
+        double total = 0.0;
+        for (int i = 0; i < this.operations.length; i++) {
+            if (operationsByName.put(this.operations[i].getName(), this.operations[i]) != null) {
+                throw new IllegalArgumentException(
+                        "Duplicate Web Script operation name '" + this.operations[i].getName() + "'.");
+            }
+            total += this.operations[i].getWeight();
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    /**
+     * Load the workload from a Spring resource location such as <tt>classpath:...</tt> or <tt>file:...</tt>
+     *
+     * @param location the location of the JSON workload definition, or empty for the Hello World Web Script
+     */
+    public static WebScriptWorkload load(String location) throws IOException {
+        if (location == null || location.trim().length() == 0) {
+            return helloWorld();
+        }
+
+        Resource resource = new DefaultResourceLoader().getResource(location.trim());
+        StringWriter json = new StringWriter();
+        InputStream is = resource.getInputStream();
+        try {
+            Reader reader = new InputStreamReader(is, "UTF-8");
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                json.write(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+
+        BasicDBList definitions = (BasicDBList) JSON.parse(json.toString());
+        List<WebScriptOperation> operations = new ArrayList<WebScriptOperation>(definitions.size());
+        for (Object definition : definitions) {
+            operations.add(toOperation((DBObject) definition));
+        }
+        WebScriptWorkload workload = new WebScriptWorkload(operations);
+        logger.info("Loaded Web Script workload from " + location + ": " + Arrays.toString(workload.operations));
+        return workload;
+    }
+
+    /**
+     * @return the workload of the single Hello World Web Script call
+     */
+    public static WebScriptWorkload helloWorld() {
+        return new WebScriptWorkload(Collections.singletonList(new WebScriptOperation(
+                DEFAULT_OPERATION_NAME, "GET", HELLO_WORLD_WS_URL, null, null, null, 0, 1.0)));
+    }
+
+    private static WebScriptOperation toOperation(DBObject definition) {
+        Map<String, String> headers = null;
+        DBObject headersObj = (DBObject) definition.get("headers");
+        if (headersObj != null) {
+            headers = new LinkedHashMap<String, String>();
+            for (String header : headersObj.keySet()) {
+                headers.put(header, String.valueOf(headersObj.get(header)));
+            }
+        }
+        Number expectedStatus = (Number) definition.get("expectedStatus");
+        Number weight = (Number) definition.get("weight");
+        String method = (String) definition.get("method");
+        return new WebScriptOperation(
+                (String) definition.get("name"),
+                method == null ? "GET" : method,
+                (String) definition.get("url"),
+                headers,
+                (String) definition.get("body"),
+                (String) definition.get("contentType"),
+                expectedStatus == null ? 0 : expectedStatus.intValue(),
+                weight == null ? 1.0 : weight.doubleValue());
+    }
+
+    /**
+     * @return <tt>true</tt> if there is more than one operation to pick from
+     */
+    public boolean isMix() {
+        return operations.length > 1;
+    }
+
+    /**
+     * Pick an operation at random, according to the weights
+     */
+    public WebScriptOperation pick() {
+        if (operations.length == 1) {
+            return operations[0];
+        }
+        double point = ThreadLocalRandom.current().nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        int index = Arrays.binarySearch(cumulativeWeights, point);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return operations[Math.min(index, operations.length - 1)];
+    }
+
+    /**
+     * @param name the name of the operation, or <tt>null</tt> for the first one
+     * @return the operation or <tt>null</tt> if there is no operation with that name
+     */
+    public WebScriptOperation getOperation(String name) {
+        if (name == null) {
+            return operations[0];
+        }
+        return operationsByName.get(name);
+    }
+}
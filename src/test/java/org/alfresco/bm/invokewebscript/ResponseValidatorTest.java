@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2005-2015 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.bm.invokewebscript;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+/**
+ * Checks that {@link ResponseValidator} finds expected content and JSON fields when they are split over the chunks
+ * the body is read in. The buffer is made small, so every chunk but the last is exactly one buffer long.
+ *
+ * @author martin.bergljung@alfresco.com
+ * @since 2.0
+ */
+public class ResponseValidatorTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static ResponseValidator newValidator(int bufferSize) {
+        ResponseValidator validator = new ResponseValidator();
+        validator.setEnabled(true);
+        validator.setBufferSize(bufferSize);
+        validator.setExpectedContent("");
+        validator.setExpectedJsonFields("");
+        return validator;
+    }
+
+    private static HttpResponse newResponse(int status, String body) {
+        byte[] bytes = body.getBytes(UTF_8);
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "");
+        response.setEntity(new InputStreamEntity(new ByteArrayInputStream(bytes), bytes.length));
+        return response;
+    }
+
+    @Test
+    public void contentSplitOverBufferBoundary() throws IOException {
+        ResponseValidator validator = newValidator(4);
+        validator.setExpectedContent("abcdef");
+
+        // Chunks "xxab", "cdef", "yy"
+        ResponseValidator.Validation validation = validator.validate(newResponse(200, "xxabcdefyy"), 200);
+        assertNull(validation.getFailure());
+        assertTrue(validation.isValid());
+        assertEquals(10L, validation.getBytes());
+    }
+
+    @Test
+    public void contentSplitOverManyBoundaries() throws IOException {
+        ResponseValidator validator = newValidator(1);
+        validator.setExpectedContent("Company Home|Sites");
+
+        ResponseValidator.Validation validation = validator.validate(
+                newResponse(200, "{\"path\":\"/Company Home/Sites\"}"), 200);
+        assertTrue(validation.getFailure(), validation.isValid());
+    }
+
+    @Test
+    public void partialMatchFallsBackAcrossBoundary() throws IOException {
+        ResponseValidator validator = newValidator(2);
+        validator.setExpectedContent("aab");
+
+        // Chunks "aa", "ab": the partial match "aa" fails on the third 'a' but its suffix "a" has to be kept
+        ResponseValidator.Validation validation = validator.validate(newResponse(200, "aaab"), 200);
+        assertTrue(validation.getFailure(), validation.isValid());
+
+        // Chunks "ab", "ab", "ac", "ab", "ab", "ad": a self-overlapping pattern that only matches at the end
+        validator.setExpectedContent("ababad");
+        validation = validator.validate(newResponse(200, "ababacababad"), 200);
+        assertTrue(validation.getFailure(), validation.isValid());
+    }
+
+    @Test
+    public void partialMatchAtBoundaryThenMismatch() throws IOException {
+        ResponseValidator validator = newValidator(4);
+        validator.setExpectedContent("abcdef");
+
+        // Chunks "xxab", "cdeX", "fyy": a match that breaks off in the next chunk is not a match
+        ResponseValidator.Validation validation = validator.validate(newResponse(200, "xxabcdeXfyy"), 200);
+        assertFalse(validation.isValid());
+        assertEquals("Body does not contain 'abcdef'", validation.getFailure());
+    }
+
+    @Test
+    public void partialMatchAtEndOfBody() throws IOException {
+        ResponseValidator validator = newValidator(4);
+        validator.setExpectedContent("abcdef");
+
+        ResponseValidator.Validation validation = validator.validate(newResponse(200, "xxabcde"), 200);
+        assertFalse(validation.isValid());
+    }
+
+    @Test
+    public void jsonFieldSplitOverBufferBoundary() throws IOException {
+        ResponseValidator validator = newValidator(4);
+        validator.setExpectedJsonFields("name");
+
+        // Chunks "{\"na", "me\" ", "\n: \"", ...: the name and its colon are in different chunks
+        ResponseValidator.Validation validation = validator.validate(newResponse(200, "{\"name\" \n: \"x\"}"), 200);
+        assertTrue(validation.getFailure(), validation.isValid());
+    }
+
+    @Test
+    public void jsonValueIsNotAField() throws IOException {
+        ResponseValidator validator = newValidator(4);
+        validator.setExpectedJsonFields("name");
+
+        // Chunks "{\"ti", "tle\"", ":\"na", "me\"}": the quoted name is a value, with no colon after it
+        ResponseValidator.Validation validation = validator.validate(newResponse(200, "{\"title\":\"name\"}"), 200);
+        assertFalse(validation.isValid());
+        assertEquals("Body has no JSON field 'name'", validation.getFailure());
+    }
+
+    @Test
+    public void reusedValidationStartsAfresh() throws IOException {
+        ResponseValidator validator = newValidator(4);
+        validator.setExpectedContent("abcdef");
+
+        // The first body leaves a partial match, which must not carry over into the next body
+        assertFalse(validator.validate(newResponse(200, "xxabc"), 200).isValid());
+        assertFalse(validator.validate(newResponse(200, "defxx"), 200).isValid());
+        assertTrue(validator.validate(newResponse(200, "abcdef"), 200).isValid());
+        assertEquals(3L, validator.getValidatedCount());
+        assertEquals(2L, validator.getFailedCount());
+    }
+}